@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.service;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+import java.io.IOException;
+
+@Tags({ "instagram", "kanashī", "kaniafi", "registry", "scheme" })
+@CapabilityDescription( "Shared registry of the compiled KaNiaFi Schemes, every processor referencing the same service validates against one compiled and versioned copy of the Scheme Source" )
+public interface KaNiaFiSchemaRegistry extends ControllerService {
+
+    /**
+     * Content digest of the current version of the Scheme Source.
+     */
+    String getDigest() throws IOException;
+
+    /**
+     * Content, digest and version of the current version of the Scheme
+     * Source, read together.
+     */
+    KaNiaFiSchemaSnapshot getSnapshot() throws IOException;
+
+    /**
+     * Path of the Scheme Source.
+     */
+    String getSource();
+
+    /**
+     * Serialized JSON Scheme of the entry named id whose content digest is
+     * digest, in the current or a recent version of the Scheme Source, as
+     * referenced by the scheme.id and scheme.digest attributes of the
+     * Reference Scheme Attribute. Null when no recent version has such an
+     * entry.
+     */
+    String resolve( String id, String digest ) throws IOException;
+
+    /**
+     * Validates the serialized JSON node against the scheme entry named id
+     * whose content digest is digest, in the current or a recent version of
+     * the Scheme Source. Validation is safe from any number of threads.
+     *
+     * @throws IOException when no recent version has such an entry
+     */
+    boolean validate( String id, String digest, String node ) throws IOException;
+
+}
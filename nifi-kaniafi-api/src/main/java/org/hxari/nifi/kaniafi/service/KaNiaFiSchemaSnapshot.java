@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.service;
+
+/**
+ * Content of one version of the Scheme Source together with its digest and
+ * version number, so a caller never pairs the content of one version with
+ * the number of another.
+ */
+public final class KaNiaFiSchemaSnapshot {
+
+    private final String digest;
+    private final byte[] scheme;
+    private final long version;
+
+    public KaNiaFiSchemaSnapshot( String digest, byte[] scheme, long version ) {
+        this.digest = digest;
+        this.scheme = scheme.clone();
+        this.version = version;
+    }
+
+    /**
+     * Content digest of the Scheme Source.
+     */
+    public String getDigest() {
+        return this.digest;
+    }
+
+    /**
+     * Content of the Scheme Source.
+     */
+    public byte[] getScheme() {
+        return this.scheme.clone();
+    }
+
+    /**
+     * Version of the Scheme Source, incremented whenever a changed source
+     * is compiled again.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+}
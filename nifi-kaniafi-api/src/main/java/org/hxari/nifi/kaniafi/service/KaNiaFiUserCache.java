@@ -20,10 +20,25 @@ import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.controller.ControllerService;
 
-@Tags({ "example" })
-@CapabilityDescription( "Example Service API." )
-public interface MyService extends ControllerService {
+@Tags({ "cache", "instagram", "kanashī", "kaniafi", "user" })
+@CapabilityDescription( "Cache of the latest extracted User Object of every user primary key" )
+public interface KaNiaFiUserCache extends ControllerService {
 
-    void execute();
+    /**
+     * Latest record stored for pk, null when it was never stored or has
+     * been evicted.
+     */
+    byte[] get( long pk );
+
+    /**
+     * Stores record as the latest one of pk, false when the record is too
+     * large to be cached.
+     */
+    boolean put( long pk, byte[] record );
+
+    /**
+     * Number of users currently cached.
+     */
+    long size();
 
 }
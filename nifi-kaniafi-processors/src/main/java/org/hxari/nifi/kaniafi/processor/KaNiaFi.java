@@ -17,9 +17,10 @@
 package org.hxari.nifi.kaniafi.processor;
 
 import java.time.Instant;
-import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -28,8 +29,16 @@ public class KaNiaFi {
     final public static String DATETIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
     final public static String DATETIME_TIMEZONE = "Asia/Tokyo";
     
+    /**
+     * Shared by every processor and concurrent task. An ObjectMapper is thread
+     * safe as long as it is not reconfigured after construction, so never
+     * change its configuration, use a reader or writer when different settings
+     * are needed.
+     */
     final public static ObjectMapper objectMapper = new ObjectMapper();
 
+    private static final ConcurrentMap<String, Normalizer> normalizers = new ConcurrentHashMap<>();
+
     public static String normalizeUnixTimestamp( double unixtime ) {
         return KaNiaFi.normalizeUnixTimestamp( unixtime, DATETIME_FORMAT, DATETIME_TIMEZONE );
     }
@@ -39,11 +48,50 @@ public class KaNiaFi {
     }
 
     public static String normalizeUnixTimestamp( double unixtime, String format, String timezone ) {
-		LocalDateTime dateTime = LocalDateTime.ofInstant( 
-			Instant.ofEpochSecond( ( long ) unixtime ), 
-			ZoneId.of( timezone )
-		);
-		return dateTime.format( DateTimeFormatter.ofPattern( format ) );
+        return KaNiaFi.normalizer( format, timezone ).normalize( unixtime );
+    }
+
+    public static Normalizer normalizer( String format, String timezone ) {
+        return normalizers.computeIfAbsent( format + "\u0000" + timezone, key -> new Normalizer( format, timezone ) );
+    }
+
+    /**
+     * Formatter of a format and timezone pair, cached by {@link #normalizer}.
+     * The last formatted strings are memoized per second, a direct mapped
+     * slot holds an immutable pair so racing threads at worst format twice.
+     */
+    public static final class Normalizer {
+
+        private static final int SLOTS = 64;
+
+        private static final class Memo {
+            private final long second;
+            private final String value;
+
+            private Memo( long second, String value ) {
+                this.second = second;
+                this.value = value;
+            }
+        }
+
+        private final DateTimeFormatter formatter;
+        private final Memo[] memos = new Memo[SLOTS];
+
+        private Normalizer( String format, String timezone ) {
+            this.formatter = DateTimeFormatter.ofPattern( format ).withZone( ZoneId.of( timezone ) );
+        }
+
+        public String normalize( double unixtime ) {
+            long second = ( long ) unixtime;
+            int slot = ( int ) ( second & ( SLOTS - 1 ) );
+            Memo memo = this.memos[slot];
+            if( memo == null || memo.second != second ) {
+                memo = new Memo( second, this.formatter.format( Instant.ofEpochSecond( second ) ) );
+                this.memos[slot] = memo;
+            }
+            return memo.value;
+        }
+
     }
 
 }
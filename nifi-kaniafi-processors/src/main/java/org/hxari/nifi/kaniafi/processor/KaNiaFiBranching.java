@@ -17,6 +17,8 @@
 package org.hxari.nifi.kaniafi.processor;
 
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
@@ -28,26 +30,36 @@ import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.hxari.nifi.kaniafi.service.KaNiaFiSchemaRegistry;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
 
-import dev.harrel.jsonschema.Validator;
-import dev.harrel.jsonschema.ValidatorFactory;
-import dev.harrel.jsonschema.Validator.Result;
-
-import java.io.FileInputStream;
+import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 @Tags({ "branching", "instagram", "kanashī", "kaniafi", "request", "response" })
 @CapabilityDescription( "Branching to manage Kanashī request results, Recalculate before using this processor, as it would be really resource consuming to validate each flowfile content with multiple json schemes, and also pay attention to each flowfile and FlowFile that will be passed here, this processor has more than 10 branching relationships" )
@@ -62,6 +74,48 @@ public class KaNiaFiBranching extends AbstractProcessor {
         .addValidator( StandardValidators.BOOLEAN_VALIDATOR )
         .build();
     
+    final public static String SCHEME_ATTRIBUTE_JSON = "JSON";
+    final public static String SCHEME_ATTRIBUTE_REFERENCE = "Reference";
+
+    final public static PropertyDescriptor SCHEME_ATTRIBUTE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "scheme.attribute" )
+        .displayName( "Scheme Attribute" )
+        .description( "JSON copies the whole matching scheme into the scheme.json attribute. Reference only writes scheme.id, scheme.digest and scheme.version and requires a Scheme Registry, the scheme is resolved again from scheme.id and scheme.digest by the Scheme Registry service, for its current and a few previous versions of the Scheme Source" )
+        .required( true )
+        .allowableValues( SCHEME_ATTRIBUTE_JSON, SCHEME_ATTRIBUTE_REFERENCE )
+        .defaultValue( SCHEME_ATTRIBUTE_JSON )
+        .build();
+
+    final public static String SCHEME_ORDERING_ADAPTIVE = "Adaptive";
+    final public static String SCHEME_ORDERING_DECLARED = "Declared";
+
+    final public static PropertyDescriptor SCHEME_CONNECTED_ONLY_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "scheme.connected.only" )
+        .displayName( "Connected Schemes Only" )
+        .description( "Only validate the schemes whose relationship is connected when the processor is scheduled, auto-terminated relationships are skipped. A FlowFile that could only match skipped schemes is directed to dropped" )
+        .required( true )
+        .defaultValue( "false" )
+        .addValidator( StandardValidators.BOOLEAN_VALIDATOR )
+        .build();
+
+    final public static PropertyDescriptor SCHEME_ORDERING_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "scheme.ordering" )
+        .displayName( "Scheme Ordering" )
+        .description( "Declared validates the candidate schemes in the order of the Scheme Source. Adaptive counts the matches of every scheme and periodically moves the most matched schemes to the front, the counts and the current rank of each scheme are published as processor counters" )
+        .required( true )
+        .allowableValues( SCHEME_ORDERING_DECLARED, SCHEME_ORDERING_ADAPTIVE )
+        .defaultValue( SCHEME_ORDERING_DECLARED )
+        .build();
+
+    final public static PropertyDescriptor SCHEME_ORDERING_INTERVAL_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "scheme.ordering.interval" )
+        .displayName( "Scheme Ordering Interval" )
+        .description( "How often the Adaptive Scheme Ordering is recalculated" )
+        .required( true )
+        .defaultValue( "1 min" )
+        .addValidator( StandardValidators.TIME_PERIOD_VALIDATOR )
+        .build();
+
     final public static PropertyDescriptor SCHEME_SOURCE_PROPERTY = new PropertyDescriptor.Builder()
         .name( "scheme.source" )
         .displayName( "Scheme Source" )
@@ -69,12 +123,119 @@ public class KaNiaFiBranching extends AbstractProcessor {
         .addValidator( StandardValidators.FILE_EXISTS_VALIDATOR )
         .build();
 
+    final public static PropertyDescriptor SCHEME_REGISTRY_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "scheme.registry" )
+        .displayName( "Scheme Registry" )
+        .description( "Shared Scheme Registry service, when set the Scheme Source and Scheme Reload Interval of this processor are ignored and every processor referencing the service validates against the same compiled copy" )
+        .required( false )
+        .identifiesControllerService( KaNiaFiSchemaRegistry.class )
+        .build();
+
+    final public static PropertyDescriptor SCHEME_RELOAD_INTERVAL_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "scheme.reload.interval" )
+        .displayName( "Scheme Reload Interval" )
+        .description( "How often the Scheme Source is checked for changes, the compiled scheme is only replaced when the file content has changed" )
+        .required( true )
+        .defaultValue( "10 sec" )
+        .addValidator( StandardValidators.TIME_PERIOD_VALIDATOR )
+        .build();
+
+    final public static String CLASSIFICATION_MODE_STREAMING = "Streaming";
+    final public static String CLASSIFICATION_MODE_TREE = "Tree";
+
+    final public static PropertyDescriptor CLASSIFICATION_MODE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "classification.mode" )
+        .displayName( "Classification Mode" )
+        .description( "Tree reads the whole FlowFile content and validates it against the candidate schemes. Streaming only reads the top-level field names and routes when they match exactly one scheme without validating it, the FlowFile is only read as a tree when the field names are ambiguous" )
+        .required( true )
+        .allowableValues( CLASSIFICATION_MODE_TREE, CLASSIFICATION_MODE_STREAMING )
+        .defaultValue( CLASSIFICATION_MODE_TREE )
+        .build();
+
+    final public static String CONTENT_FORMAT_JSON = "JSON";
+    final public static String CONTENT_FORMAT_NDJSON = "NDJSON";
+
+    final public static PropertyDescriptor CONTENT_FORMAT_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "content.format" )
+        .displayName( "Content Format" )
+        .description( "JSON branches the FlowFile as a single document. NDJSON classifies every line of the FlowFile as a document and writes one FlowFile per relationship and scheme type holding the lines classified into it, the bundle itself is directed to original. Lines are always classified as a tree" )
+        .required( true )
+        .allowableValues( CONTENT_FORMAT_JSON, CONTENT_FORMAT_NDJSON )
+        .defaultValue( CONTENT_FORMAT_JSON )
+        .build();
+
+    final public static PropertyDescriptor CLASSIFICATION_FIELDS_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "classification.fields" )
+        .displayName( "Classification Fields" )
+        .description( "Maximum number of top-level field names read by the Streaming Classification Mode" )
+        .required( true )
+        .defaultValue( "64" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+    final public static PropertyDescriptor BATCH_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "batch.size" )
+        .displayName( "Batch Size" )
+        .description( "Maximum number of FlowFiles branched in a single session, the session is committed once for the whole batch" )
+        .required( true )
+        .defaultValue( "10" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+    final public static PropertyDescriptor STATISTICS_INTERVAL_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "statistics.interval" )
+        .displayName( "Statistics Log Interval" )
+        .description( "How often the per type FlowFiles, bytes, parse and validation time percentiles and candidates tried are logged at info level, 0 sec disables the log" )
+        .required( true )
+        .defaultValue( "5 min" )
+        .addValidator( StandardValidators.TIME_PERIOD_VALIDATOR )
+        .build();
+
+    final public static PropertyDescriptor FINGERPRINT_CACHE_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "fingerprint.cache.size" )
+        .displayName( "Fingerprint Cache Size" )
+        .description( "Maximum number of document shapes whose classification is remembered, documents with the same key paths and node types are routed like the first one without validating them again. Set to 0 to validate every FlowFile" )
+        .required( true )
+        .defaultValue( "0" )
+        .addValidator( StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR )
+        .build();
+
+    final public static PropertyDescriptor FINGERPRINT_DEPTH_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "fingerprint.depth" )
+        .displayName( "Fingerprint Depth" )
+        .description( "How deep the key paths of a document are included into its fingerprint" )
+        .required( true )
+        .defaultValue( "3" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+    final public static PropertyDescriptor FINGERPRINT_REVALIDATE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "fingerprint.revalidate" )
+        .displayName( "Fingerprint Revalidate" )
+        .description( "Validate one of every N Fingerprint Cache hits again to catch documents whose shape no longer matches their scheme. Set to 0 to never validate hits" )
+        .required( true )
+        .defaultValue( "100" )
+        .addValidator( StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR )
+        .build();
+
     final public static Relationship DIRECT_RELATIONSHIP = new Relationship.Builder()
         .name( "direct" )
         .description( "FlowFile direct message inbox will be forwarded to this relationship" )
         .autoTerminateDefault( true )
         .build();
 
+    final public static Relationship DROPPED_RELATIONSHIP = new Relationship.Builder()
+        .name( "dropped" )
+        .description( "When Connected Schemes Only is enabled, FlowFiles that can only match schemes of unconnected relationships will be directed to this relationship without being validated" )
+        .autoTerminateDefault( true )
+        .build();
+
+    final public static Relationship ORIGINAL_RELATIONSHIP = new Relationship.Builder()
+        .name( "original" )
+        .description( "When the Content Format is NDJSON, the original FlowFile will be passed to this relationship once its lines are branched" )
+        .autoTerminateDefault( true )
+        .build();
+
     final public static Relationship EXPLORE_RELATIONSHIP = new Relationship.Builder()
         .name( "explore" )
         .description( "FlowFile Instagram explore will be directed to this relationship" )
@@ -252,25 +413,94 @@ public class KaNiaFiBranching extends AbstractProcessor {
         transferable.put( KaNiaFiType.USER, USER_RELATIONSHIP );
     }
 
+    final public static Map<KaNiaFiType, Map<String, String>> subtypes = new HashMap<>();
+    static {
+        Map<String, String> profile = new LinkedHashMap<>();
+        profile.put( "data", "profile-graphql:variable" );
+        profile.put( "user", "profile-api-info:id" );
+        profile.put( "graphql", "profile-web-info:username" );
+        subtypes.put( KaNiaFiType.PROFILE, Collections.unmodifiableMap( profile ) );
+    }
+
+    private volatile KaNiaFiFingerprintCache cache;
+    private volatile Set<KaNiaFiType> connected;
     private List<PropertyDescriptor> descriptors;
+    private final Map<String, LongAdder> hits = new ConcurrentHashMap<>();
+    private volatile Map<String, Integer> ranks;
+    private volatile KaNiaFiSchemeHolder holder;
+    private final AtomicLong reorder = new AtomicLong();
     private Set<Relationship> relationships;
+    private volatile KaNiaFiStatistics statistics;
+    private final AtomicLong summary = new AtomicLong();
+
+    private static final class Measure {
+        private int candidates;
+        private String name;
+        private long parse;
+        private KaNiaFiType type = KaNiaFiType.UNKNOWN;
+        private long validation;
+    }
+
+    private static final class Partition {
+        private final Map<String, String> attributes;
+        private final FlowFile flowFile;
+        private int records;
+        private final Relationship relationship;
+        private final OutputStream stream;
+
+        private Partition( FlowFile flowFile, Relationship relationship, Map<String, String> attributes, OutputStream stream ) {
+            this.attributes = attributes;
+            this.flowFile = flowFile;
+            this.relationship = relationship;
+            this.stream = stream;
+        }
+    }
 
     @Override
     protected void init( final ProcessorInitializationContext context ) {
         
         descriptors = new ArrayList<>();
         descriptors.add( ALLOW_SET_SCHEME_PROPERTY );
+        descriptors.add( SCHEME_ATTRIBUTE_PROPERTY );
         descriptors.add( SCHEME_SOURCE_PROPERTY );
+        descriptors.add( SCHEME_RELOAD_INTERVAL_PROPERTY );
+        descriptors.add( SCHEME_REGISTRY_PROPERTY );
+        descriptors.add( SCHEME_CONNECTED_ONLY_PROPERTY );
+        descriptors.add( SCHEME_ORDERING_PROPERTY );
+        descriptors.add( SCHEME_ORDERING_INTERVAL_PROPERTY );
+        descriptors.add( CONTENT_FORMAT_PROPERTY );
+        descriptors.add( CLASSIFICATION_MODE_PROPERTY );
+        descriptors.add( CLASSIFICATION_FIELDS_PROPERTY );
+        descriptors.add( BATCH_SIZE_PROPERTY );
+        descriptors.add( FINGERPRINT_CACHE_SIZE_PROPERTY );
+        descriptors.add( FINGERPRINT_DEPTH_PROPERTY );
+        descriptors.add( FINGERPRINT_REVALIDATE_PROPERTY );
+        descriptors.add( STATISTICS_INTERVAL_PROPERTY );
         descriptors = Collections.unmodifiableList( descriptors );
         
         relationships = new HashSet<>();
+        relationships.add( DROPPED_RELATIONSHIP );
         relationships.add( FAILURE_RELATIONSHIP );
+        relationships.add( ORIGINAL_RELATIONSHIP );
         for( Relationship relationship : transferable.values() ) {
             relationships.add( relationship );
         }
         relationships = Collections.unmodifiableSet( relationships );
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate( final ValidationContext context ) {
+        List<ValidationResult> results = new ArrayList<>();
+        if( context.getProperty( SCHEME_ATTRIBUTE_PROPERTY ).getValue().equals( SCHEME_ATTRIBUTE_REFERENCE ) && context.getProperty( SCHEME_REGISTRY_PROPERTY ).isSet() == false ) {
+            results.add( new ValidationResult.Builder()
+                .subject( SCHEME_ATTRIBUTE_PROPERTY.getDisplayName() )
+                .valid( false )
+                .explanation( "the Reference Scheme Attribute can only be resolved through a Scheme Registry" )
+                .build() );
+        }
+        return results;
+    }
+
     @Override
     public Set<Relationship> getRelationships() {
         return this.relationships;
@@ -283,82 +513,383 @@ public class KaNiaFiBranching extends AbstractProcessor {
 
     @OnScheduled
     public void onScheduled( final ProcessContext context ) {
+        if( context.getProperty( SCHEME_REGISTRY_PROPERTY ).isSet() ) {
+            holder = new KaNiaFiSchemeHolder( context.getProperty( SCHEME_REGISTRY_PROPERTY ).asControllerService( KaNiaFiSchemaRegistry.class ), getLogger() );
+        }
+        else {
+            holder = new KaNiaFiSchemeHolder(
+                context.getProperty( SCHEME_SOURCE_PROPERTY ).getValue(),
+                context.getProperty( SCHEME_RELOAD_INTERVAL_PROPERTY ).asTimePeriod( TimeUnit.NANOSECONDS ),
+                getLogger()
+            );
+        }
+        connected = null;
+        if( context.getProperty( SCHEME_CONNECTED_ONLY_PROPERTY ).asBoolean() ) {
+            Set<KaNiaFiType> types = EnumSet.noneOf( KaNiaFiType.class );
+            for( Map.Entry<KaNiaFiType, Relationship> transfer : transferable.entrySet() ) {
+                if( context.hasConnection( transfer.getValue() ) ) {
+                    types.add( transfer.getKey() );
+                }
+            }
+            connected = Collections.unmodifiableSet( types );
+            getLogger().info( "Validating connected schemes {} only", new Object[]{ connected } );
+        }
+        ranks = context.getProperty( SCHEME_ORDERING_PROPERTY ).getValue().equals( SCHEME_ORDERING_ADAPTIVE ) ? Collections.emptyMap() : null;
+        reorder.set( System.nanoTime() );
+        statistics = new KaNiaFiStatistics();
+        summary.set( System.nanoTime() + context.getProperty( STATISTICS_INTERVAL_PROPERTY ).asTimePeriod( TimeUnit.NANOSECONDS ) );
+        int capacity = context.getProperty( FINGERPRINT_CACHE_SIZE_PROPERTY ).asInteger();
+        cache = capacity >= 1 ? new KaNiaFiFingerprintCache( capacity ) : null;
+        try {
+            holder.get();
+        }
+        catch( IOException e ) {
+            getLogger().error( "Failed to compile Scheme {}", new Object[]{ holder.source(), e } );
+        }
     }
 
     @Override
     public void onTrigger( final ProcessContext context, final ProcessSession session ) {
-        FlowFile flowFile = session.get();
-        if( flowFile != null ) {
-            Relationship relationship = UNKNOWN_RELATIONSHIP;
-            ComponentLog logger = getLogger();
-            String schemeSource = context.getProperty( SCHEME_SOURCE_PROPERTY ).getValue();
-            InputStream flowFileInputStream = session.read( flowFile );
-            try {
-                ValidatorFactory validatorFactory = new ValidatorFactory();
-                Validator validator = validatorFactory.createValidator();
-                InputStream schemeInputStream = new FileInputStream( schemeSource );
-                JsonNode schemeRootNode = KaNiaFi.objectMapper.readTree( schemeInputStream );
+        List<FlowFile> flowFiles = session.get( context.getProperty( BATCH_SIZE_PROPERTY ).asInteger() );
+        if( flowFiles.isEmpty() ) {
+            return;
+        }
+        KaNiaFiScheme scheme;
+        try {
+            scheme = holder.get();
+        }
+        catch( IOException e ) {
+            if( e instanceof FileNotFoundException ) {
+                getLogger().error( "No such file or directory {} {}", new Object[]{ holder.source(), flowFiles } );
+            }
+            else {
+                getLogger().error( "Failed to parse Scheme contents {}", new Object[] { flowFiles } );
+            }
+            session.transfer( flowFiles, FAILURE_RELATIONSHIP );
+            return;
+        }
+        boolean bundled = context.getProperty( CONTENT_FORMAT_PROPERTY ).getValue().equals( CONTENT_FORMAT_NDJSON );
+        for( FlowFile flowFile : flowFiles ) {
+            if( bundled ) {
+                bundle( context, session, scheme, flowFile );
+            }
+            else {
+                branch( context, session, scheme, flowFile );
+            }
+        }
+        if( ranks != null ) {
+            long now = System.nanoTime();
+            long next = reorder.get();
+            if( now - next >= 0 && reorder.compareAndSet( next, now + context.getProperty( SCHEME_ORDERING_INTERVAL_PROPERTY ).asTimePeriod( TimeUnit.NANOSECONDS ) ) ) {
+                rank( session, scheme );
+            }
+        }
+        long interval = context.getProperty( STATISTICS_INTERVAL_PROPERTY ).asTimePeriod( TimeUnit.NANOSECONDS );
+        if( interval >= 1 ) {
+            long now = System.nanoTime();
+            long next = summary.get();
+            if( now - next >= 0 && summary.compareAndSet( next, now + interval ) ) {
+                getLogger().info( "Branching statistics {}", new Object[]{ statistics.summary() } );
+            }
+        }
+    }
+
+    private synchronized void rank( final ProcessSession session, final KaNiaFiScheme scheme ) {
+        List<KaNiaFiScheme.Entry> entries = new ArrayList<>( scheme.entries() );
+        entries.sort( Comparator.comparingLong( ( KaNiaFiScheme.Entry entry ) -> {
+            LongAdder adder = hits.get( entry.name() );
+            return adder != null ? -adder.sum() : 0;
+        }).thenComparingInt( KaNiaFiScheme.Entry::index ) );
+        Map<String, Integer> previous = ranks;
+        Map<String, Integer> ranked = new HashMap<>();
+        for( KaNiaFiScheme.Entry entry : entries ) {
+            if( ranked.containsKey( entry.name() ) == false ) {
+                int rank = ranked.size() + 1;
+                ranked.put( entry.name(), rank );
+                session.adjustCounter( "Scheme Rank " + entry.name(), rank - previous.getOrDefault( entry.name(), 0 ), false );
+            }
+        }
+        ranks = Collections.unmodifiableMap( ranked );
+        getLogger().debug( "Reordered Scheme candidates {}", new Object[]{ ranked } );
+    }
+
+    private void branch( final ProcessContext context, final ProcessSession session, final KaNiaFiScheme scheme, FlowFile flowFile ) {
+        ComponentLog logger = getLogger();
+        Map<String, String> attributes = new LinkedHashMap<>();
+        Map<String, JsonNodeType> fields = null;
+        JsonNodeType root = null;
+        KaNiaFiScheme.Entry entry = null;
+        Measure measure = new Measure();
+        boolean resolved = false;
+        try {
+            if( context.getProperty( CLASSIFICATION_MODE_PROPERTY ).getValue().equals( CLASSIFICATION_MODE_STREAMING ) ) {
+                try( InputStream flowFileInputStream = session.read( flowFile );
+                    JsonParser parser = KaNiaFi.objectMapper.getFactory().createParser( flowFileInputStream ) ) {
+                    long started = System.nanoTime();
+                    if( parser.nextToken() == JsonToken.START_OBJECT ) {
+                        Map<String, JsonNodeType> scanned = new LinkedHashMap<>();
+                        boolean complete = KaNiaFiClassifier.fields( parser, context.getProperty( CLASSIFICATION_FIELDS_PROPERTY ).asInteger(), scanned );
+                        measure.parse += System.nanoTime() - started;
+                        List<KaNiaFiScheme.Entry> candidates = scheme.classifier().candidates( scanned );
+                        List<KaNiaFiScheme.Entry> transferable = transferable( candidates );
+                        if( candidates.size() == 1 && transferable.size() == 1 && complete ) {
+                            entry = candidates.get( 0 );
+                            fields = scanned;
+                            resolved = true;
+                        }
+                        else if( transferable.isEmpty() && complete ) {
+                            fields = scanned;
+                            resolved = true;
+                        }
+                        root = JsonNodeType.OBJECT;
+                    }
+                }
+            }
+            if( resolved == false ) {
+                try( InputStream flowFileInputStream = session.read( flowFile ) ) {
+                    long started = System.nanoTime();
+                    JsonNode flowFileNode = KaNiaFi.objectMapper.readTree( flowFileInputStream );
+                    fields = flowFileNode.isObject() ? KaNiaFiClassifier.fields( flowFileNode ) : null;
+                    root = flowFileNode.getNodeType();
+                    long parsed = System.nanoTime();
+                    measure.parse += parsed - started;
+                    entry = classify( context, session, scheme, flowFileNode, fields, measure );
+                    measure.validation = System.nanoTime() - parsed;
+                }
+            }
+        }
+        catch( IOException e ) {
+            logger.error( "Failed to parse FlowFile contents {}", new Object[] { flowFile } );
+            session.transfer( flowFile, FAILURE_RELATIONSHIP );
+            return;
+        }
+        Relationship relationship = route( session, scheme, entry, fields, root, measure );
+        if( entry != null ) {
+            attributes( context, scheme, entry, measure.name, attributes );
+        }
+        if( attributes.isEmpty() == false ) {
+            flowFile = session.putAllAttributes( flowFile, attributes );
+        }
+        measure( session, flowFile.getSize(), measure );
+        session.transfer( flowFile, relationship );
+    }
+
+    private void bundle( final ProcessContext context, final ProcessSession session, final KaNiaFiScheme scheme, FlowFile flowFile ) {
+        ComponentLog logger = getLogger();
+        Map<String, Partition> partitions = new LinkedHashMap<>();
+        try( InputStream flowFileInputStream = session.read( flowFile );
+            BufferedReader reader = new BufferedReader( new InputStreamReader( flowFileInputStream, StandardCharsets.UTF_8 ) ) ) {
+            String line;
+            while( ( line = reader.readLine() ) != null ) {
+                if( line.isBlank() ) {
+                    continue;
+                }
+                byte[] record = line.getBytes( StandardCharsets.UTF_8 );
+                Relationship relationship;
+                KaNiaFiScheme.Entry entry = null;
+                Measure measure = new Measure();
                 try {
+                    long started = System.nanoTime();
+                    JsonNode lineNode = KaNiaFi.objectMapper.readTree( line );
+                    Map<String, JsonNodeType> fields = lineNode.isObject() ? KaNiaFiClassifier.fields( lineNode ) : null;
+                    long parsed = System.nanoTime();
+                    measure.parse = parsed - started;
+                    entry = classify( context, session, scheme, lineNode, fields, measure );
+                    measure.validation = System.nanoTime() - parsed;
+                    relationship = route( session, scheme, entry, fields, lineNode.getNodeType(), measure );
+                    measure( session, record.length, measure );
+                }
+                catch( JsonProcessingException e ) {
+                    entry = null;
+                    relationship = FAILURE_RELATIONSHIP;
+                }
+                String key = entry != null ? relationship.getName() + "@" + entry.index() + "@" + measure.name : relationship.getName();
+                Partition partition = partitions.get( key );
+                if( partition == null ) {
                     Map<String, String> attributes = new LinkedHashMap<>();
-                    JsonNode flowFileNode = KaNiaFi.objectMapper.readTree( flowFileInputStream );
-                    for( JsonNode node : schemeRootNode ) {
-                        String name = node.get( "type" ).asText();
-                        KaNiaFiType type = KaNiaFiType.of( name );
-                        if( transferable.containsKey( type ) ) {
-                            JsonNode schemeNode = node.get( "scheme" );
-                            URI schemeUri = validator.registerSchema( schemeNode );
-                            Result result = validator.validate( schemeUri, flowFileNode );
-                            if( result.isValid() ) {
-                                relationship = transferable.get( type );
-                                if( type == KaNiaFiType.PROFILE ) {
-                                    if( flowFileNode.has( "data" ) && 
-                                        flowFileNode.get( "data" ).isObject() ) {
-                                        name = "profile-graphql:variable";
-                                    }
-                                    else if( flowFileNode.has( "user" ) && 
-                                        flowFileNode.get( "user" ).isObject() ) {
-                                        name = "profile-api-info:id";
-                                    }
-                                    else if( flowFileNode.has( "graphql" ) && 
-                                        flowFileNode.get( "graphql" ).isObject() ) {
-                                        name = "profile-web-info:username";
-                                    }
-                                    else {
-                                        type = KaNiaFiType.UNKNOWN;
-                                        relationship = UNKNOWN_RELATIONSHIP;
-                                    }
-                                    logger.info( "Unknown Profile Scheme" );
-                                }
-                                logger.info( "Check value of relationship {}: {}: {}", new Object[]{ relationship, type, name } );
-                                if( context.getProperty( ALLOW_SET_SCHEME_PROPERTY ).asBoolean() ) {
-                                    attributes.put( "scheme.json", node.get( "scheme" ).toString() );
-                                    attributes.put( "scheme.type", name );
-                                }
-                                flowFile = session.putAllAttributes( flowFile, attributes );
-                                session.transfer( flowFile, relationship );
-                                session.commit();
-                                return;
-                            }
-                        }
+                    if( entry != null ) {
+                        attributes( context, scheme, entry, measure.name, attributes );
                     }
+                    FlowFile child = session.create( flowFile );
+                    partition = new Partition( child, relationship, attributes, session.write( child ) );
+                    partitions.put( key, partition );
+                }
+                partition.stream.write( record );
+                partition.stream.write( '\n' );
+                partition.records++;
+            }
+        }
+        catch( IOException e ) {
+            logger.error( "Failed to read FlowFile records {}", new Object[]{ flowFile, e } );
+            for( Partition partition : partitions.values() ) {
+                close( partition );
+                session.remove( partition.flowFile );
+            }
+            session.transfer( flowFile, FAILURE_RELATIONSHIP );
+            return;
+        }
+        for( Partition partition : partitions.values() ) {
+            close( partition );
+            partition.attributes.put( "mime.type", "application/x-ndjson" );
+            partition.attributes.put( "record.count", String.valueOf( partition.records ) );
+            session.transfer( session.putAllAttributes( partition.flowFile, partition.attributes ), partition.relationship );
+        }
+        session.transfer( flowFile, ORIGINAL_RELATIONSHIP );
+    }
+
+    private void close( Partition partition ) {
+        try {
+            partition.stream.close();
+        }
+        catch( IOException e ) {
+            getLogger().warn( "Failed to close partition {}", new Object[]{ partition.flowFile, e } );
+        }
+    }
+
+    private Relationship route( final ProcessSession session, final KaNiaFiScheme scheme, KaNiaFiScheme.Entry entry, Map<String, JsonNodeType> fields, JsonNodeType root, Measure measure ) {
+        ComponentLog logger = getLogger();
+        Relationship relationship = UNKNOWN_RELATIONSHIP;
+        if( entry != null ) {
+            if( ranks != null ) {
+                hits.computeIfAbsent( entry.name(), key -> new LongAdder() ).increment();
+                session.adjustCounter( "Scheme Hits " + entry.name(), 1, false );
+            }
+            String name = entry.name();
+            KaNiaFiType type = entry.type();
+            relationship = transferable.get( type );
+            if( subtypes.containsKey( type ) ) {
+                name = subtype( type, fields );
+                if( name == null ) {
+                    logger.info( "Unknown {} Scheme", new Object[]{ type } );
+                    type = KaNiaFiType.UNKNOWN;
+                    relationship = UNKNOWN_RELATIONSHIP;
+                    name = entry.name();
+                }
+            }
+            measure.name = name;
+            measure.type = type;
+            logger.info( "Check value of relationship {}: {}: {}", new Object[]{ relationship, type, name } );
+        }
+        else if( connected != null && root != null ) {
+            List<KaNiaFiScheme.Entry> candidates = fields != null ? 
+                scheme.classifier().candidates( fields ) : 
+                scheme.classifier().candidates( root );
+            for( KaNiaFiScheme.Entry candidate : candidates ) {
+                if( connected.contains( candidate.type() ) ) {
+                    relationship = UNKNOWN_RELATIONSHIP;
+                    break;
                 }
-                catch( IOException e ) {
-                    logger.error( "Failed to parse FlowFile contents {}", new Object[] { flowFile } );
-                    relationship =  FAILURE_RELATIONSHIP;
+                if( transferable.containsKey( candidate.type() ) ) {
+                    relationship = DROPPED_RELATIONSHIP;
                 }
             }
-            catch( IOException e ) {
-                if( e instanceof FileNotFoundException ) {
-                    logger.error( "No such file or directory {} {}", new Object[]{ schemeSource, flowFile } );
+        }
+        return relationship;
+    }
+
+    private void attributes( final ProcessContext context, final KaNiaFiScheme scheme, KaNiaFiScheme.Entry entry, String name, Map<String, String> attributes ) {
+        if( context.getProperty( ALLOW_SET_SCHEME_PROPERTY ).asBoolean() ) {
+            if( context.getProperty( SCHEME_ATTRIBUTE_PROPERTY ).getValue().equals( SCHEME_ATTRIBUTE_REFERENCE ) ) {
+                attributes.put( "scheme.id", entry.name() );
+                attributes.put( "scheme.digest", entry.digest() );
+                attributes.put( "scheme.version", String.valueOf( scheme.version() ) );
+            }
+            else {
+                attributes.put( "scheme.json", entry.scheme().toString() );
+            }
+            attributes.put( "scheme.type", name );
+        }
+    }
+
+    private void measure( final ProcessSession session, long bytes, Measure measure ) {
+        KaNiaFiType type = measure.type;
+        statistics.record( type, bytes, measure.parse, measure.validation, measure.candidates );
+        session.adjustCounter( "Type FlowFiles " + type.value(), 1, false );
+        session.adjustCounter( "Type Bytes " + type.value(), bytes, false );
+        session.adjustCounter( "Type Parse Nanos " + type.value(), measure.parse, false );
+        session.adjustCounter( "Type Validation Nanos " + type.value(), measure.validation, false );
+        session.adjustCounter( "Type Candidates " + type.value(), measure.candidates, false );
+    }
+
+    private KaNiaFiScheme.Entry classify( final ProcessContext context, final ProcessSession session, final KaNiaFiScheme scheme, JsonNode flowFileNode, Map<String, JsonNodeType> fields, Measure measure ) {
+        KaNiaFiFingerprintCache cache = this.cache;
+        if( cache == null ) {
+            return validate( scheme, flowFileNode, fields, measure );
+        }
+        KaNiaFiScheme.Entry entry;
+        long fingerprint = KaNiaFiFingerprintCache.fingerprint( flowFileNode, context.getProperty( FINGERPRINT_DEPTH_PROPERTY ).asInteger() );
+        Integer cached = cache.get( scheme.version(), fingerprint );
+        if( cached != null ) {
+            session.adjustCounter( "Fingerprint Cache Hits", 1, false );
+            entry = cached != KaNiaFiFingerprintCache.UNKNOWN ? scheme.entries().get( cached ) : null;
+            int revalidate = context.getProperty( FINGERPRINT_REVALIDATE_PROPERTY ).asInteger();
+            if( revalidate >= 1 && cache.hits() % revalidate == 0 ) {
+                KaNiaFiScheme.Entry validated = validate( scheme, flowFileNode, fields, measure );
+                if( validated != entry ) {
+                    session.adjustCounter( "Fingerprint Cache Drifts", 1, false );
+                    getLogger().debug( "Fingerprint {} drifted from {} to {}", new Object[]{ 
+                        fingerprint, 
+                        entry != null ? entry.name() : KaNiaFiType.UNKNOWN.value(), 
+                        validated != null ? validated.name() : KaNiaFiType.UNKNOWN.value() 
+                    });
+                    entry = validated;
+                    cache.put( scheme.version(), fingerprint, entry != null ? entry.index() : KaNiaFiFingerprintCache.UNKNOWN );
                 }
-                else {
-                    logger.error( "Failed to parse Scheme contents {}", new Object[] { flowFile } );
+            }
+        }
+        else {
+            session.adjustCounter( "Fingerprint Cache Misses", 1, false );
+            entry = validate( scheme, flowFileNode, fields, measure );
+            cache.put( scheme.version(), fingerprint, entry != null ? entry.index() : KaNiaFiFingerprintCache.UNKNOWN );
+        }
+        return entry;
+    }
+
+    private KaNiaFiScheme.Entry validate( KaNiaFiScheme scheme, JsonNode node, Map<String, JsonNodeType> fields, Measure measure ) {
+        List<KaNiaFiScheme.Entry> candidates = transferable( fields != null ? 
+            scheme.classifier().candidates( fields ) : 
+            scheme.classifier().candidates( node.getNodeType() ) );
+        Map<String, Integer> ranks = this.ranks;
+        if( ranks != null && candidates.size() >= 2 ) {
+            candidates.sort( Comparator.comparingInt( candidate -> ranks.getOrDefault( candidate.name(), Integer.MAX_VALUE ) ) );
+        }
+        for( KaNiaFiScheme.Entry candidate : candidates ) {
+            measure.candidates++;
+            if( scheme.validate( candidate, node ) ) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private List<KaNiaFiScheme.Entry> transferable( List<KaNiaFiScheme.Entry> candidates ) {
+        Set<KaNiaFiType> connected = this.connected;
+        List<KaNiaFiScheme.Entry> entries = new ArrayList<>( candidates.size() );
+        for( KaNiaFiScheme.Entry candidate : candidates ) {
+            if( transferable.containsKey( candidate.type() ) && ( connected == null || connected.contains( candidate.type() ) ) ) {
+                entries.add( candidate );
+            }
+        }
+        return entries;
+    }
+
+    public KaNiaFiFingerprintCache getFingerprintCache() {
+        return this.cache;
+    }
+
+    public KaNiaFiStatistics getStatistics() {
+        return this.statistics;
+    }
+
+    public static String subtype( KaNiaFiType type, Map<String, JsonNodeType> fields ) {
+        if( fields != null ) {
+            for( Map.Entry<String, String> subtype : subtypes.get( type ).entrySet() ) {
+                if( fields.get( subtype.getKey() ) == JsonNodeType.OBJECT ) {
+                    return subtype.getValue();
                 }
-                relationship = FAILURE_RELATIONSHIP;
             }
-            session.transfer( flowFile, relationship );
         }
+        return null;
     }
 
 }
-
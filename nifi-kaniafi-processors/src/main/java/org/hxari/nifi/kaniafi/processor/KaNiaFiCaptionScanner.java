@@ -0,0 +1,174 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import java.io.IOException;
+
+/**
+ * Single pass scanner of caption text for hashtags, mentions and URLs.
+ *
+ * The scanner works on a char range and reports every token as an offset
+ * and length into that range, so no String is created per token and the
+ * caller decides what to keep. Hashtags and mentions must start a word,
+ * which leaves out e-mail addresses and HTML entities such as &#38;, and
+ * a hashtag needs at least one letter.
+ */
+public final class KaNiaFiCaptionScanner {
+
+	final public static int HASHTAG = 0;
+	final public static int MENTION = 1;
+	final public static int URL = 2;
+
+	final public static int MENTION_MAX_LENGTH = 30;
+
+	public interface Listener {
+		void token( int kind, char[] text, int offset, int length ) throws IOException;
+	}
+
+	private KaNiaFiCaptionScanner() {
+	}
+
+	private static boolean boundary( char[] text, int start, int index ) {
+		if( index == start ) {
+			return true;
+		}
+		int previous = Character.codePointBefore( text, index, start );
+		return word( previous ) == false && previous != '&' && previous != '/';
+	}
+
+	private static int hashtag( char[] text, int index, int end ) {
+		boolean letter = false;
+		while( index < end ) {
+			int codePoint = Character.codePointAt( text, index, end );
+			if( word( codePoint ) == false ) {
+				break;
+			}
+			letter |= Character.isLetter( codePoint );
+			index += Character.charCount( codePoint );
+		}
+		return letter ? index : -1;
+	}
+
+	private static int mention( char[] text, int index, int end ) {
+		int start = index;
+		while( index < end ) {
+			char c = text[index];
+			if( ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || ( c >= '0' && c <= '9' ) || c == '_' || c == '.' ) {
+				index++;
+				continue;
+			}
+			break;
+		}
+		if( index < end && word( Character.codePointAt( text, index, end ) ) ) {
+			return -1;
+		}
+		while( index > start && text[index - 1] == '.' ) {
+			index--;
+		}
+		return index - start > MENTION_MAX_LENGTH ? -1 : index;
+	}
+
+	private static boolean prefix( char[] text, int index, int end, String prefix ) {
+		if( end - index < prefix.length() ) {
+			return false;
+		}
+		for( int i = 0; i < prefix.length(); i++ ) {
+			if( Character.toLowerCase( text[index + i] ) != prefix.charAt( i ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reports the tokens of text[offset, offset + length) in order of
+	 * appearance and returns how many were reported.
+	 */
+	public static int scan( char[] text, int offset, int length, Listener listener ) throws IOException {
+		int count = 0;
+		int end = offset + length;
+		int index = offset;
+		while( index < end ) {
+			char c = text[index];
+			int next = -1;
+			int kind = -1;
+			int start = index + 1;
+			if( ( c == '#' || c == '@' ) && boundary( text, offset, index ) ) {
+				kind = c == '#' ? HASHTAG : MENTION;
+				next = c == '#' ? hashtag( text, start, end ) : mention( text, start, end );
+			}
+			else if( ( c == 'h' || c == 'H' || c == 'w' || c == 'W' ) && boundary( text, offset, index ) ) {
+				int scheme = prefix( text, index, end, "https://" ) ? 8 : prefix( text, index, end, "http://" ) ? 7 : prefix( text, index, end, "www." ) ? 4 : 0;
+				if( scheme >= 1 ) {
+					kind = URL;
+					start = index;
+					next = url( text, index + scheme, end );
+				}
+			}
+			if( next > start ) {
+				listener.token( kind, text, start, next - start );
+				count++;
+				index = next;
+			}
+			else {
+				index++;
+			}
+		}
+		return count;
+	}
+
+	private static int url( char[] text, int index, int end ) {
+		int start = index;
+		int parentheses = 0;
+		while( index < end ) {
+			char c = text[index];
+			if( c <= ' ' || c == '"' || c == '<' || c == '>' || ( c >= 0x7f && Character.isLetterOrDigit( Character.codePointAt( text, index, end ) ) == false ) ) {
+				break;
+			}
+			if( c == '(' ) {
+				parentheses++;
+			}
+			else if( c == ')' ) {
+				parentheses--;
+			}
+			index++;
+		}
+		while( index > start ) {
+			char c = text[index - 1];
+			if( c == '.' || c == ',' || c == ';' || c == ':' || c == '!' || c == '?' || c == '\'' ) {
+				index--;
+			}
+			else if( c == ')' && parentheses < 0 ) {
+				parentheses++;
+				index--;
+			}
+			else {
+				break;
+			}
+		}
+		return index > start ? index : -1;
+	}
+
+	private static boolean word( int codePoint ) {
+		if( Character.isLetterOrDigit( codePoint ) || codePoint == '_' ) {
+			return true;
+		}
+		int type = Character.getType( codePoint );
+		return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK;
+	}
+
+}
@@ -0,0 +1,371 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decision table over the top-level keys of a document.
+ *
+ * Each scheme entry is broken down into alternatives (the entry itself or the
+ * members of its anyOf/oneOf), and an alternative is only kept as candidate
+ * when the document has every required key with the declared node type and,
+ * for closed objects, no key outside its properties. The table never drops an
+ * entry the document could validate against, it only avoids validating the
+ * entries that must fail.
+ */
+public final class KaNiaFiClassifier {
+
+	private static final class Alternative {
+
+		private final int entry;
+		private final JsonNodeType accepts;
+		private final int required;
+		private final Set<String> closed;
+		private final String[] keys;
+		private final JsonNodeType[] types;
+
+		private Alternative( int entry, JsonNodeType accepts, List<String> keys, List<JsonNodeType> types, Set<String> closed ) {
+			this.entry = entry;
+			this.accepts = accepts;
+			this.required = keys.size();
+			this.closed = closed;
+			this.keys = keys.toArray( new String[0] );
+			this.types = types.toArray( new JsonNodeType[0] );
+		}
+
+	}
+
+	private static final class Requirement {
+
+		private final int alternative;
+		private final JsonNodeType type;
+
+		private Requirement( int alternative, JsonNodeType type ) {
+			this.alternative = alternative;
+			this.type = type;
+		}
+
+	}
+
+	/**
+	 * Incremental {@link KaNiaFiClassifier#admits} for an object read by a
+	 * parser, fed with its top-level fields one at a time. A probe is reset
+	 * and reused for every object so probing allocates nothing per object.
+	 */
+	public static final class Probe {
+
+		private final Alternative[] alternatives;
+		private final int[] counts;
+		private final boolean[] violated;
+
+		private Probe( Alternative[] alternatives ) {
+			this.alternatives = alternatives;
+			this.counts = new int[alternatives.length];
+			this.violated = new boolean[alternatives.length];
+		}
+
+		public boolean admitted() {
+			for( int i = 0; i < this.alternatives.length; i++ ) {
+				Alternative alternative = this.alternatives[i];
+				if( alternative.accepts != null && alternative.accepts != JsonNodeType.OBJECT ) {
+					continue;
+				}
+				if( this.counts[i] == alternative.required && this.violated[i] == false ) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public void field( String name, JsonToken token ) {
+			JsonNodeType type = type( token );
+			for( int i = 0; i < this.alternatives.length; i++ ) {
+				Alternative alternative = this.alternatives[i];
+				for( int k = 0; k < alternative.keys.length; k++ ) {
+					if( alternative.keys[k].equals( name ) && ( alternative.types[k] == null || alternative.types[k] == type ) ) {
+						this.counts[i]++;
+					}
+				}
+				if( alternative.closed != null && alternative.closed.contains( name ) == false ) {
+					this.violated[i] = true;
+				}
+			}
+		}
+
+		public void reset() {
+			Arrays.fill( this.counts, 0 );
+			Arrays.fill( this.violated, false );
+		}
+
+	}
+
+	private final Alternative[] alternatives;
+	private final List<KaNiaFiScheme.Entry> entries;
+	private final Map<String, Requirement[]> requirements;
+
+	public KaNiaFiClassifier( List<KaNiaFiScheme.Entry> entries ) {
+		List<Alternative> alternatives = new ArrayList<>();
+		Map<String, List<Requirement>> requirements = new HashMap<>();
+		for( int i = 0; i < entries.size(); i++ ) {
+			JsonNode scheme = entries.get( i ).scheme();
+			JsonNode members = scheme.has( "anyOf" ) ? scheme.get( "anyOf" ) : scheme.get( "oneOf" );
+			if( members != null && members.isArray() && !scheme.has( "type" ) && !scheme.has( "required" ) ) {
+				for( JsonNode member : members ) {
+					alternative( i, member, alternatives, requirements );
+				}
+			}
+			else {
+				alternative( i, scheme, alternatives, requirements );
+			}
+		}
+		this.entries = entries;
+		this.alternatives = alternatives.toArray( new Alternative[0] );
+		this.requirements = new HashMap<>();
+		for( Map.Entry<String, List<Requirement>> requirement : requirements.entrySet() ) {
+			this.requirements.put( requirement.getKey(), requirement.getValue().toArray( new Requirement[0] ) );
+		}
+	}
+
+	private static void alternative( int entry, JsonNode scheme, List<Alternative> alternatives, Map<String, List<Requirement>> requirements ) {
+		JsonNodeType accepts = type( scheme.get( "type" ) );
+		if( accepts == JsonNodeType.OBJECT || accepts == null ) {
+			int index = alternatives.size();
+			List<String> keys = new ArrayList<>();
+			List<JsonNodeType> types = new ArrayList<>();
+			JsonNode properties = scheme.path( "properties" );
+			for( JsonNode key : scheme.path( "required" ) ) {
+				if( key.isTextual() ) {
+					JsonNodeType type = type( properties.path( key.asText() ).get( "type" ) );
+					requirements.computeIfAbsent( key.asText(), k -> new ArrayList<>() ).add( new Requirement( index, type ) );
+					keys.add( key.asText() );
+					types.add( type );
+				}
+			}
+			Set<String> closed = null;
+			JsonNode additional = scheme.get( "additionalProperties" );
+			if( additional != null && additional.isBoolean() && !additional.asBoolean() && !scheme.has( "patternProperties" ) ) {
+				closed = new HashSet<>();
+				Iterator<String> names = properties.fieldNames();
+				while( names.hasNext() ) {
+					closed.add( names.next() );
+				}
+			}
+			alternatives.add( new Alternative( entry, accepts, keys, types, closed ) );
+		}
+		else {
+			alternatives.add( new Alternative( entry, accepts, Collections.emptyList(), Collections.emptyList(), null ) );
+		}
+	}
+
+	private static JsonNodeType type( JsonNode type ) {
+		if( type == null || !type.isTextual() ) {
+			return null;
+		}
+		switch( type.asText() ) {
+			case "array":
+				return JsonNodeType.ARRAY;
+			case "boolean":
+				return JsonNodeType.BOOLEAN;
+			case "integer":
+			case "number":
+				return JsonNodeType.NUMBER;
+			case "null":
+				return JsonNodeType.NULL;
+			case "object":
+				return JsonNodeType.OBJECT;
+			case "string":
+				return JsonNodeType.STRING;
+			default:
+				return null;
+		}
+	}
+
+	public static Map<String, JsonNodeType> fields( JsonNode node ) {
+		Map<String, JsonNodeType> fields = new LinkedHashMap<>();
+		Iterator<Map.Entry<String, JsonNode>> iterator = node.fields();
+		while( iterator.hasNext() ) {
+			Map.Entry<String, JsonNode> field = iterator.next();
+			fields.put( field.getKey(), field.getValue().getNodeType() );
+		}
+		return fields;
+	}
+
+	public static boolean fields( JsonParser parser, int limit, Map<String, JsonNodeType> fields ) throws IOException {
+		JsonToken token;
+		while( ( token = parser.nextToken() ) == JsonToken.FIELD_NAME ) {
+			if( fields.size() >= limit ) {
+				return false;
+			}
+			String name = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if( value == null ) {
+				break;
+			}
+			fields.put( name, type( value ) );
+			parser.skipChildren();
+		}
+		if( token != JsonToken.END_OBJECT ) {
+			throw new JsonParseException( parser, "Unexpected end of object" );
+		}
+		return true;
+	}
+
+	private static JsonNodeType type( JsonToken token ) {
+		switch( token ) {
+			case START_ARRAY:
+				return JsonNodeType.ARRAY;
+			case START_OBJECT:
+				return JsonNodeType.OBJECT;
+			case VALUE_FALSE:
+			case VALUE_TRUE:
+				return JsonNodeType.BOOLEAN;
+			case VALUE_NULL:
+				return JsonNodeType.NULL;
+			case VALUE_NUMBER_FLOAT:
+			case VALUE_NUMBER_INT:
+				return JsonNodeType.NUMBER;
+			case VALUE_STRING:
+				return JsonNodeType.STRING;
+			default:
+				return JsonNodeType.POJO;
+		}
+	}
+
+	/**
+	 * Whether the node may validate against the entry, checked in place on
+	 * the node without allocating, for testing many nodes against one entry.
+	 */
+	public boolean admits( KaNiaFiScheme.Entry entry, JsonNode node ) {
+		JsonNodeType type = node.getNodeType();
+		for( Alternative alternative : this.alternatives ) {
+			if( alternative.entry != entry.index() ) {
+				continue;
+			}
+			if( alternative.accepts != null && alternative.accepts != type ) {
+				continue;
+			}
+			if( type != JsonNodeType.OBJECT ) {
+				return true;
+			}
+			boolean admitted = true;
+			for( int i = 0; i < alternative.keys.length && admitted; i++ ) {
+				JsonNode value = node.get( alternative.keys[i] );
+				admitted = value != null && ( alternative.types[i] == null || alternative.types[i] == value.getNodeType() );
+			}
+			if( admitted && alternative.closed != null ) {
+				Iterator<String> names = node.fieldNames();
+				while( names.hasNext() && admitted ) {
+					admitted = alternative.closed.contains( names.next() );
+				}
+			}
+			if( admitted ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public Probe probe( KaNiaFiScheme.Entry entry ) {
+		List<Alternative> alternatives = new ArrayList<>();
+		for( Alternative alternative : this.alternatives ) {
+			if( alternative.entry == entry.index() ) {
+				alternatives.add( alternative );
+			}
+		}
+		return new Probe( alternatives.toArray( new Alternative[0] ) );
+	}
+
+	public List<KaNiaFiScheme.Entry> candidates( JsonNode node ) {
+		if( node.isObject() ) {
+			return this.candidates( fields( node ) );
+		}
+		return this.candidates( node.getNodeType() );
+	}
+
+	public List<KaNiaFiScheme.Entry> candidates( JsonNodeType type ) {
+		boolean[] matches = new boolean[this.entries.size()];
+		for( Alternative alternative : this.alternatives ) {
+			if( alternative.accepts == null || alternative.accepts == type ) {
+				matches[alternative.entry] = true;
+			}
+		}
+		return this.collect( matches );
+	}
+
+	public List<KaNiaFiScheme.Entry> candidates( Map<String, JsonNodeType> fields ) {
+		int[] counts = new int[this.alternatives.length];
+		for( Map.Entry<String, JsonNodeType> field : fields.entrySet() ) {
+			Requirement[] requirements = this.requirements.get( field.getKey() );
+			if( requirements != null ) {
+				for( Requirement requirement : requirements ) {
+					if( requirement.type == null || requirement.type == field.getValue() ) {
+						counts[requirement.alternative]++;
+					}
+				}
+			}
+		}
+		boolean[] matches = new boolean[this.entries.size()];
+		for( int i = 0; i < this.alternatives.length; i++ ) {
+			Alternative alternative = this.alternatives[i];
+			if( matches[alternative.entry] ) {
+				continue;
+			}
+			if( alternative.accepts != null && alternative.accepts != JsonNodeType.OBJECT ) {
+				continue;
+			}
+			if( counts[i] != alternative.required ) {
+				continue;
+			}
+			if( alternative.closed != null && !alternative.closed.containsAll( fields.keySet() ) ) {
+				continue;
+			}
+			matches[alternative.entry] = true;
+		}
+		return this.collect( matches );
+	}
+
+	private List<KaNiaFiScheme.Entry> collect( boolean[] matches ) {
+		List<KaNiaFiScheme.Entry> candidates = null;
+		for( int i = 0; i < matches.length; i++ ) {
+			if( matches[i] ) {
+				if( candidates == null ) {
+					candidates = new ArrayList<>( 2 );
+				}
+				candidates.add( this.entries.get( i ) );
+			}
+		}
+		return candidates != null ? candidates : Collections.emptyList();
+	}
+
+}
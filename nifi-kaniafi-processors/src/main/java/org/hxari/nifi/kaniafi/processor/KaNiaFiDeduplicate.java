@@ -0,0 +1,274 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+@Tags({ "comment", "deduplicate", "instagram", "kanashī", "kaniafi", "media", "seen" })
+@CapabilityDescription( "Pass only the first seen media and comments downstream, the ids are kept in a memory mapped on-disk index which survives restarts" )
+@SeeAlso({ KaNiaFiExtract.class, KaNiaFiMediaCaption.class })
+public class KaNiaFiDeduplicate extends AbstractProcessor {
+
+	final public static PropertyDescriptor SEEN_DIRECTORY_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "seen.directory" )
+        .displayName( "Seen Directory" )
+        .description( "Directory of the seen index files, it is created if missing and can not be shared by several processors" )
+        .required( true )
+        .addValidator( StandardValidators.NON_EMPTY_VALIDATOR )
+        .build();
+
+	final public static PropertyDescriptor SEEN_CAPACITY_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "seen.capacity" )
+        .displayName( "Seen Capacity" )
+        .description( "Maximum number of ids remembered, once reached the index is compacted to the newest half of the ids, the index takes about 20 to 30 bytes per id on disk" )
+        .required( true )
+        .defaultValue( "10000000" )
+        .addValidator( StandardValidators.createLongValidator( 2, 100000000, true ) )
+        .build();
+
+	final public static PropertyDescriptor ID_ATTRIBUTE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "id.attribute" )
+        .displayName( "Id Attribute" )
+        .description( "FlowFile attribute holding the id, if not set the id is read from the top level fields of the FlowFile content" )
+        .addValidator( StandardValidators.NON_EMPTY_VALIDATOR )
+        .build();
+
+	final public static PropertyDescriptor ID_FIELDS_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "id.fields" )
+        .displayName( "Id Fields" )
+        .description( "Comma separated top level fields of the media or comment object the id is read from, the first present field wins, a textual id such as 3142_1 is read up to the first non digit" )
+        .required( true )
+        .defaultValue( "pk,id,media_id" )
+        .addValidator( StandardValidators.NON_EMPTY_VALIDATOR )
+        .build();
+
+	final public static PropertyDescriptor BATCH_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "batch.size" )
+        .displayName( "Batch Size" )
+        .description( "Maximum number of FlowFiles deduplicated in a single session, the ids are written into the index once the session is committed" )
+        .required( true )
+        .defaultValue( "100" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+	final public static Relationship DUPLICATE_RELATIONSHIP = new Relationship.Builder()
+        .name( "duplicate" )
+        .description( "FlowFile whose id has already been seen will be passed to this relationship" )
+        .autoTerminateDefault( true )
+        .build();
+
+	final public static Relationship FAILURE_RELATIONSHIP = new Relationship.Builder()
+        .name( "failure" )
+        .description( "FlowFile without a readable id will be passed to this relationship" )
+        .build();
+
+	final public static Relationship UNIQUE_RELATIONSHIP = new Relationship.Builder()
+        .name( "unique" )
+        .description( "FlowFile whose id is seen for the first time will be passed to this relationship" )
+        .build();
+
+	private List<PropertyDescriptor> descriptors;
+	private Set<Relationship> relationships;
+
+	private volatile String[] fields;
+	private volatile KaNiaFiSeenIndex index;
+
+	@Override
+	protected void init( final ProcessorInitializationContext context ) {
+		
+		descriptors = new ArrayList<>();
+		descriptors.add( SEEN_DIRECTORY_PROPERTY );
+		descriptors.add( SEEN_CAPACITY_PROPERTY );
+		descriptors.add( ID_ATTRIBUTE_PROPERTY );
+		descriptors.add( ID_FIELDS_PROPERTY );
+		descriptors.add( BATCH_SIZE_PROPERTY );
+		descriptors = Collections.unmodifiableList( descriptors );
+		
+		relationships = new HashSet<>();
+		relationships.add( DUPLICATE_RELATIONSHIP );
+		relationships.add( FAILURE_RELATIONSHIP );
+		relationships.add( UNIQUE_RELATIONSHIP );
+		relationships = Collections.unmodifiableSet( relationships );
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@OnScheduled
+	public void onScheduled( final ProcessContext context ) throws IOException {
+		fields = context.getProperty( ID_FIELDS_PROPERTY ).getValue().trim().split( "\\s*,\\s*" );
+		index = new KaNiaFiSeenIndex(
+			Paths.get( context.getProperty( SEEN_DIRECTORY_PROPERTY ).getValue() ),
+			context.getProperty( SEEN_CAPACITY_PROPERTY ).asLong().intValue()
+		);
+	}
+
+	@OnStopped
+	public void onStopped() {
+		if( index != null ) {
+			try {
+				index.close();
+			}
+			catch( IOException e ) {
+				getLogger().error( "Failed to close seen index", e );
+			}
+			index = null;
+		}
+	}
+
+	@Override
+	public void onTrigger( final ProcessContext context, final ProcessSession session ) {
+		List<FlowFile> flowFiles = session.get( context.getProperty( BATCH_SIZE_PROPERTY ).asInteger() );
+		if( flowFiles.isEmpty() ) {
+			return;
+		}
+		KaNiaFiSeenIndex index = this.index;
+		String attribute = context.getProperty( ID_ATTRIBUTE_PROPERTY ).getValue();
+		long[] claimed = new long[flowFiles.size()];
+		int length = 0;
+		try {
+			for( FlowFile flowFile : flowFiles ) {
+				Long id = attribute != null ? parse( flowFile.getAttribute( attribute ) ) : read( session, flowFile );
+				if( id == null ) {
+					getLogger().error( "No media or comment id in {}", new Object[]{ flowFile } );
+					session.transfer( flowFile, FAILURE_RELATIONSHIP );
+					continue;
+				}
+				flowFile = session.putAttribute( flowFile, "seen.id", Long.toString( id ) );
+				if( index.claim( id ) ) {
+					claimed[length++] = id;
+					session.transfer( flowFile, UNIQUE_RELATIONSHIP );
+				}
+				else {
+					session.transfer( flowFile, DUPLICATE_RELATIONSHIP );
+				}
+			}
+		}
+		catch( RuntimeException e ) {
+			index.release( claimed, length );
+			throw e;
+		}
+		session.adjustCounter( "Seen Unique", length, false );
+		int count = length;
+		session.commitAsync(
+			() -> {
+				try {
+					index.commit( claimed, count );
+				}
+				catch( IOException e ) {
+					index.release( claimed, count );
+					getLogger().error( "Failed to write {} ids into seen index", new Object[]{ count, e } );
+				}
+			},
+			e -> index.release( claimed, count )
+		);
+	}
+
+	static Long parse( String value ) {
+		if( value == null ) {
+			return null;
+		}
+		int length = 0;
+		while( length < value.length() && Character.isDigit( value.charAt( length ) ) ) {
+			length++;
+		}
+		if( length == 0 ) {
+			return null;
+		}
+		try {
+			return Long.parseLong( value.substring( 0, length ) );
+		}
+		catch( NumberFormatException e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Streams the top level fields of the content object and returns the id
+	 * of the first field in Id Fields order, nested values are skipped.
+	 */
+	private Long read( ProcessSession session, FlowFile flowFile ) {
+		Long[] ids = new Long[fields.length];
+		try( InputStream in = session.read( flowFile ); JsonParser parser = KaNiaFi.objectMapper.getFactory().createParser( in ) ) {
+			if( parser.nextToken() != JsonToken.START_OBJECT ) {
+				return null;
+			}
+			while( parser.nextToken() == JsonToken.FIELD_NAME ) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				for( int i = 0; i < fields.length; i++ ) {
+					if( fields[i].equals( name ) ) {
+						if( token == JsonToken.VALUE_NUMBER_INT ) {
+							ids[i] = parser.getLongValue();
+						}
+						else if( token == JsonToken.VALUE_STRING ) {
+							ids[i] = parse( parser.getText() );
+						}
+						break;
+					}
+				}
+				if( ids[0] != null ) {
+					return ids[0];
+				}
+				parser.skipChildren();
+			}
+		}
+		catch( IOException | ProcessException e ) {
+			getLogger().error( "Failed to read id of {}", new Object[]{ flowFile, e } );
+			return null;
+		}
+		for( Long id : ids ) {
+			if( id != null ) {
+				return id;
+			}
+		}
+		return null;
+	}
+
+}
@@ -17,8 +17,11 @@
 package org.hxari.nifi.kaniafi.processor;
 
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
@@ -28,6 +31,7 @@ import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
@@ -35,24 +39,38 @@ import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.io.StreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 @Tags({ "extract", "instagram", "kanashī", "kaniafi", "request", "response" })
 @CapabilityDescription( "Extracting the results of Kanashī requests, as well as validating the FlowFIle content" )
 @SeeAlso({ KaNiaFiExtractUser.class })
+@DynamicProperty( name="Attribute name", value="JSON Pointer", description="Projects the value at the JSON Pointer of the response envelope into the attribute, replacing the default url, browser, unixtime, request and response attributes" )
 @ReadsAttributes({ @ReadsAttribute( attribute="x", description="X" ) })
 @WritesAttributes({ @WritesAttribute( attribute="y", description="Y" ) })
 public class KaNiaFiExtract extends AbstractProcessor {
@@ -93,12 +111,69 @@ public class KaNiaFiExtract extends AbstractProcessor {
 			.addValidator( StandardValidators.NON_EMPTY_VALIDATOR )
 			.build();
 
+	final public static PropertyDescriptor DATETIME_FIELDS_PROPERTY = new PropertyDescriptor.Builder()
+			.name( "datetime.fields" )
+			.displayName( "Datetime Fields" )
+			.description( "Comma separated names of the Unix Timestamp fields of the response content such as created_at, created_at_utc, taken_at or expiring_at, a <field>_datetime field with the converted datetime is added next to each of them." )
+			.required( false )
+			.addValidator( StandardValidators.NON_BLANK_VALIDATOR )
+			.build();
+
+	final public static PropertyDescriptor BATCH_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+			.name( "batch.size" )
+			.displayName( "Batch Size" )
+			.description( "Maximum number of FlowFiles extracted in a single session, the session is committed once for the whole batch." )
+			.required( true )
+			.defaultValue( "10" )
+			.addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+			.build();
+
+	final public static PropertyDescriptor ATTRIBUTE_MAX_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+			.name( "attribute.max.size" )
+			.displayName( "Attribute Max Size" )
+			.description( "Maximum size of a single projected attribute, larger values are left out and listed in attributes.overflow. Unlimited when not set." )
+			.required( false )
+			.addValidator( StandardValidators.DATA_SIZE_VALIDATOR )
+			.build();
+
+	final public static PropertyDescriptor ATTRIBUTES_MAX_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+			.name( "attributes.max.size" )
+			.displayName( "Attributes Max Size" )
+			.description( "Maximum total size of the projected attributes of a FlowFile, attributes which no longer fit are left out and listed in attributes.overflow. Unlimited when not set." )
+			.required( false )
+			.addValidator( StandardValidators.DATA_SIZE_VALIDATOR )
+			.build();
+
+	final public static PropertyDescriptor ENVELOPE_SPILL_PROPERTY = new PropertyDescriptor.Builder()
+			.name( "envelope.spill" )
+			.displayName( "Spill Envelope" )
+			.description( "When an attribute is left out for its size, write the request and response envelope without its content into a FlowFile directed to envelope, its uuid is set as envelope.uuid attribute." )
+			.required( true )
+			.defaultValue( "false" )
+			.addValidator( StandardValidators.BOOLEAN_VALIDATOR )
+			.build();
+
+	final public static PropertyDescriptor RESPONSE_CONTENT_ATTRIBUTE_PROPERTY = new PropertyDescriptor.Builder()
+			.name( "response.content.attribute" )
+			.displayName( "Response Content Attribute" )
+			.description( "Whether the response attribute embeds response.content along with the status, cookies and headers. The content is always streamed to the output, disable it so the content is never held in memory." )
+			.required( true )
+			.defaultValue( "true" )
+			.addValidator( StandardValidators.BOOLEAN_VALIDATOR )
+			.build();
+
 	final public static Relationship CHECKPOINT_RELATIONSHIP = new Relationship.Builder()
 			.name( "checkpoint" )
 			.description( "Checkpointed request." )
 			.autoTerminateDefault( true )
 			.build();
 	
+	final public static Relationship ENVELOPE_RELATIONSHIP = new Relationship.Builder()
+			.name( "envelope" )
+			.description( "Envelope of the requests whose attributes did not fit, when Spill Envelope is enabled." )
+			.autoTerminateDefault( true )
+			.build();
+	
 	final public static Relationship FAILURE_RELATIONSHIP = new Relationship.Builder()
 			.name( "failure" )
 			.description( "Failed parse flowfile content." )
@@ -120,15 +195,51 @@ public class KaNiaFiExtract extends AbstractProcessor {
 			.autoTerminateDefault( true )
 			.build();
 	
-	final public static Relationship UNPARSED_RELATIONSHIP = new Relationship.Builder()
-			.name( "unparsed" )
-			.description( "Failed to parse request response." )
-			.autoTerminateDefault( true )
-			.build();
-	
-	private static final String URL_PATTERN = "^(?:https\\:\\/\\/)?(?:(?:[a-zA-Z]+(?:[a-zA-Z0-9\\-\\.]*[a-zA-Z0-9]))\\.)?instagram\\.com\\/?(?:[^\n]*)?$";
-	private static final String UNAUTHORIZED_PATTERN = "^\\<Response\s+\\[401\\]\\>$";
+	private static final Pattern URL_PATTERN = Pattern.compile( "^(?:https\\:\\/\\/)?(?:(?:[a-zA-Z]+(?:[a-zA-Z0-9\\-\\.]*[a-zA-Z0-9]))\\.)?instagram\\.com\\/?(?:[^\n]*)?$" );
+	private static final Pattern UNAUTHORIZED_PATTERN = Pattern.compile( "^\\<Response\s+\\[401\\]\\>$" );
+
+	private static final ObjectReader reader = KaNiaFi.objectMapper.reader();
+
+	/**
+	 * Parts of a Kanashī response envelope read while response.content is
+	 * copied to the output, the content itself is only held in memory when
+	 * it is embedded into the response attribute.
+	 */
+	private static final class Envelope {
+
+		private final Map<String, String> attributes = new LinkedHashMap<>();
+		private String checkpointLock;
+		private String checkpointUrl;
+		private boolean content;
+		private boolean embed;
+		private boolean overflow;
+		private Relationship relationship;
+		private final ObjectNode response = KaNiaFi.objectMapper.createObjectNode();
+		private final ObjectNode root = KaNiaFi.objectMapper.createObjectNode();
+		private String status;
+		private String target;
+
+	}
 
+	final public static Map<String, String> projections = new LinkedHashMap<>();
+	static {
+		projections.put( "url", "/target" );
+		projections.put( "browser", "/browser" );
+		projections.put( "unixtime", "/unixtime" );
+		projections.put( "request", "/request" );
+		projections.put( "request.body", "/request/body" );
+		projections.put( "request.query", "/request/query" );
+		projections.put( "request.cookies", "/request/cookies" );
+		projections.put( "request.headers", "/request/headers" );
+		projections.put( "response", "/response" );
+		projections.put( "response.cookies", "/response/cookies" );
+		projections.put( "response.headers", "/response/headers" );
+	}
+
+	private volatile Charset charset;
+	private volatile Set<String> datetimeFields;
+	private volatile KaNiaFi.Normalizer normalizer;
+	private volatile Map<String, JsonPointer> projection;
 	private List<PropertyDescriptor> descriptors;
 	private Set<Relationship> relationships;
 
@@ -137,18 +248,24 @@ public class KaNiaFiExtract extends AbstractProcessor {
 		
 		descriptors = new ArrayList<>();
 		descriptors.add( ALLOW_SET_ATTRIBUTE_PROPERTY );
+		descriptors.add( BATCH_SIZE_PROPERTY );
 		descriptors.add( CHARSET_PROPERTY );
 		descriptors.add( DATETIME_FORMAT_PROPERTY );
 		descriptors.add( TIMEZONE_ID_PROPERTY );
+		descriptors.add( DATETIME_FIELDS_PROPERTY );
+		descriptors.add( ATTRIBUTE_MAX_SIZE_PROPERTY );
+		descriptors.add( ATTRIBUTES_MAX_SIZE_PROPERTY );
+		descriptors.add( ENVELOPE_SPILL_PROPERTY );
+		descriptors.add( RESPONSE_CONTENT_ATTRIBUTE_PROPERTY );
 		descriptors = Collections.unmodifiableList( descriptors );
 		
 		relationships = new HashSet<>();
 		relationships.add( CHECKPOINT_RELATIONSHIP );
+		relationships.add( ENVELOPE_RELATIONSHIP );
 		relationships.add( FAILURE_RELATIONSHIP );
 		relationships.add( INVALID_RELATIONSHIP );
 		relationships.add( SUCCESS_RELATIONSHIP );
 		relationships.add( UNAUTHORIZED_RELATIONSHIP );
-		relationships.add( UNPARSED_RELATIONSHIP );
 		relationships = Collections.unmodifiableSet( relationships );
 	}
 
@@ -164,95 +281,356 @@ public class KaNiaFiExtract extends AbstractProcessor {
 
 	@OnScheduled
 	public void onScheduled( final ProcessContext context ) {
+		charset = Charset.forName( context.getProperty( CHARSET_PROPERTY ).getValue() );
+		normalizer = KaNiaFi.normalizer(
+			context.getProperty( DATETIME_FORMAT_PROPERTY ).getValue(),
+			context.getProperty( TIMEZONE_ID_PROPERTY ).getValue()
+		);
+		Set<String> fields = new HashSet<>();
+		if( context.getProperty( DATETIME_FIELDS_PROPERTY ).isSet() ) {
+			for( String field : context.getProperty( DATETIME_FIELDS_PROPERTY ).getValue().split( "," ) ) {
+				if( field.isBlank() == false ) {
+					fields.add( field.trim() );
+				}
+			}
+		}
+		datetimeFields = fields;
+		Map<String, JsonPointer> projection = new LinkedHashMap<>();
+		for( Map.Entry<PropertyDescriptor, String> property : context.getProperties().entrySet() ) {
+			if( property.getKey().isDynamic() ) {
+				projection.put( property.getKey().getName(), JsonPointer.compile( property.getValue() ) );
+			}
+		}
+		if( projection.isEmpty() ) {
+			for( Map.Entry<String, String> attribute : projections.entrySet() ) {
+				projection.put( attribute.getKey(), JsonPointer.compile( attribute.getValue() ) );
+			}
+		}
+		this.projection = projection;
+	}
+
+	@Override
+	protected PropertyDescriptor getSupportedDynamicPropertyDescriptor( final String propertyDescriptorName ) {
+		return new PropertyDescriptor.Builder()
+			.name( propertyDescriptorName )
+			.displayName( propertyDescriptorName )
+			.description( "JSON Pointer into the Kanashī response envelope whose value is set as the attribute " + propertyDescriptorName )
+			.required( false )
+			.dynamic( true )
+			.addValidator( ( subject, input, context ) -> {
+				try {
+					JsonPointer.compile( input );
+					return new ValidationResult.Builder().subject( subject ).input( input ).valid( true ).build();
+				}
+				catch( IllegalArgumentException e ) {
+					return new ValidationResult.Builder().subject( subject ).input( input ).valid( false ).explanation( e.getMessage() ).build();
+				}
+			})
+			.build();
 	}
 
 	@Override
 	public void onTrigger( final ProcessContext context, final ProcessSession session ) {
-		FlowFile flowFile = session.get();
-		if( flowFile != null ) {
-			ComponentLog logger = getLogger();
-			Relationship relationship = null;
-			ObjectMapper objectMapper = new ObjectMapper();
-			InputStream inputStream = session.read( flowFile );
-			Map<String, String> attributes = new LinkedHashMap<>();
-			try {
-				JsonNode rootNode = objectMapper.readTree( inputStream );
-				JsonNode requestNode = rootNode.get( "request" );
-				JsonNode responseNode = rootNode.get( "response" );
-				JsonNode contentNode = responseNode.get( "content" );
-				String content = contentNode.toString();
-				JsonNode targetNode = rootNode.get( "target" );
-				String target = targetNode.asText();
-				if( target.matches( URL_PATTERN ) ) {
-					JsonNode statusNode = responseNode.get( "status" );
-					if( statusNode.asText().matches( UNAUTHORIZED_PATTERN ) ) {
-						relationship = UNAUTHORIZED_RELATIONSHIP;
-						logger.debug( "Request {} is Unauthorized {}", new Object[]{ target, flowFile }  );
+		for( FlowFile flowFile : session.get( context.getProperty( BATCH_SIZE_PROPERTY ).asInteger() ) ) {
+			extract( context, session, flowFile );
+		}
+	}
+
+	private void extract( final ProcessContext context, final ProcessSession session, final FlowFile flowFile ) {
+		ComponentLog logger = getLogger();
+		Envelope envelope = new Envelope();
+		envelope.embed = context.getProperty( RESPONSE_CONTENT_ATTRIBUTE_PROPERTY ).asBoolean();
+		try {
+			try( InputStream in = session.read( flowFile ) ) {
+				header( in, envelope );
+			}
+			if( envelope.target != null ) {
+				if( URL_PATTERN.matcher( envelope.target ).matches() == false ) {
+					session.transfer( flowFile, INVALID_RELATIONSHIP );
+					return;
+				}
+				if( envelope.status != null && UNAUTHORIZED_PATTERN.matcher( envelope.status ).matches() ) {
+					logger.debug( "Request {} is Unauthorized {}", new Object[]{ envelope.target, flowFile } );
+					FlowFile results = flowFile;
+					if( context.getProperty( ALLOW_SET_ATTRIBUTE_PROPERTY ).asBoolean() ) {
+						results = session.putAttribute( results, "url", envelope.target );
+						results = session.putAttribute( results, "response.status", envelope.status );
+					}
+					session.transfer( results, UNAUTHORIZED_RELATIONSHIP );
+					return;
+				}
+			}
+			FlowFile results = session.write( flowFile, new StreamCallback() {
+					@Override
+					public void process( InputStream in, OutputStream out ) throws IOException {
+						read( in, out, envelope );
+						route( context, envelope, flowFile );
+					}
+				}
+			);
+			if( context.getProperty( ALLOW_SET_ATTRIBUTE_PROPERTY ).asBoolean() ) {
+				results = session.putAllAttributes( results, envelope.attributes );
+				logger.info( "Successfully added Attributes {} into {}", new Object[]{
+					envelope.attributes,
+					results
+				});
+			}
+			if( envelope.overflow && context.getProperty( ENVELOPE_SPILL_PROPERTY ).asBoolean() ) {
+				FlowFile envelopeFlowFile = session.create( flowFile );
+				ObjectNode root = envelope.root;
+				if( envelope.embed && envelope.response.has( "content" ) ) {
+					root = root.deepCopy();
+					( ( ObjectNode ) root.get( "response" ) ).remove( "content" );
+				}
+				final ObjectNode spilled = root;
+				envelopeFlowFile = session.write( envelopeFlowFile, out -> KaNiaFi.objectMapper.writeValue( out, spilled ) );
+				envelopeFlowFile = session.putAttribute( envelopeFlowFile, "mime.type", "application/json" );
+				results = session.putAttribute( results, "envelope.uuid", envelopeFlowFile.getAttribute( CoreAttributes.UUID.key() ) );
+				session.transfer( envelopeFlowFile, ENVELOPE_RELATIONSHIP );
+			}
+			session.transfer( results, envelope.relationship );
+		}
+		catch( Exception e ) {
+			logger.error( "Failed to parse FlowFile contents {}", new Object[] { flowFile } );
+			session.transfer( flowFile, FAILURE_RELATIONSHIP );
+		}
+	}
+
+	private static void header( InputStream in, Envelope envelope ) throws IOException {
+		try( JsonParser parser = reader.createParser( in ) ) {
+			if( parser.nextToken() != JsonToken.START_OBJECT ) {
+				throw new JsonParseException( parser, "FlowFile content is not a Kanashī response" );
+			}
+			while( parser.nextToken() == JsonToken.FIELD_NAME ) {
+				String name = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if( name.equals( "target" ) && token.isScalarValue() ) {
+					envelope.target = parser.getText();
+					if( envelope.status != null || URL_PATTERN.matcher( envelope.target ).matches() == false ) {
+						return;
 					}
-					else {
-						try {
-							objectMapper.readTree( content );
-							JsonNode checkpointUrl = contentNode.get( "checkpoint_url" );
-							if( checkpointUrl != null ) {
-								attributes.put( "checkpoint.url", checkpointUrl.asText() );
-								attributes.put( "checkpoint.lock", contentNode.get( "lock" ).asText() );
-								relationship = CHECKPOINT_RELATIONSHIP;
-								logger.debug( "Request {} is Checkpointed {}", new Object[]{ target, flowFile } );
+				}
+				else if( name.equals( "response" ) && token == JsonToken.START_OBJECT ) {
+					while( parser.nextToken() == JsonToken.FIELD_NAME ) {
+						String field = parser.getCurrentName();
+						JsonToken value = parser.nextToken();
+						if( value == null ) {
+							return;
+						}
+						if( value.isScalarValue() && field.equals( "status" ) ) {
+							envelope.status = parser.getText();
+							if( envelope.target != null ) {
+								return;
 							}
-							else {
-								relationship = SUCCESS_RELATIONSHIP;
+						}
+						parser.skipChildren();
+					}
+				}
+				else {
+					parser.skipChildren();
+				}
+			}
+		}
+	}
+
+	private void read( InputStream in, OutputStream out, Envelope envelope ) throws IOException {
+		try( JsonParser parser = reader.createParser( in );
+			JsonGenerator generator = charset.equals( StandardCharsets.UTF_8 ) ? 
+				KaNiaFi.objectMapper.getFactory().createGenerator( out, JsonEncoding.UTF8 ) : 
+				KaNiaFi.objectMapper.getFactory().createGenerator( new OutputStreamWriter( out, charset ) ) ) {
+			generator.disable( JsonGenerator.Feature.AUTO_CLOSE_TARGET );
+			if( parser.nextToken() != JsonToken.START_OBJECT ) {
+				throw new JsonParseException( parser, "FlowFile content is not a Kanashī response" );
+			}
+			while( parser.nextToken() == JsonToken.FIELD_NAME ) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				if( name.equals( "response" ) && parser.currentToken() == JsonToken.START_OBJECT ) {
+					while( parser.nextToken() == JsonToken.FIELD_NAME ) {
+						String field = parser.getCurrentName();
+						parser.nextToken();
+						if( field.equals( "content" ) && envelope.embed ) {
+							TokenBuffer buffer = new TokenBuffer( parser );
+							copy( parser, buffer, envelope );
+							try( JsonParser buffered = buffer.asParser() ) {
+								envelope.response.set( field, reader.readTree( buffered ) );
 							}
+							buffer.serialize( generator );
 						}
-						catch( IOException e ) {
-							relationship = UNPARSED_RELATIONSHIP;
-							logger.debug( "Failed to parse request response from {} {}", new Object[]{ target, flowFile } );
+						else if( field.equals( "content" ) ) {
+							copy( parser, generator, envelope );
+						}
+						else {
+							envelope.response.set( field, reader.readTree( parser ) );
 						}
 					}
-					attributes.put( "url", targetNode.asText() );
-					attributes.put( "browser", rootNode.get( "browser" ).asText() );
-					attributes.put( "unixtime", rootNode.get( "unixtime" ).asText() );
-					attributes.put( "request", requestNode.toString() );
-					attributes.put( "request.body", requestNode.get( "body" ).toString() );
-					attributes.put( "request.query", requestNode.get( "query" ).toString() );
-					attributes.put( "request.cookies", requestNode.get( "cookies" ).toString() );
-					attributes.put( "request.headers", requestNode.get( "headers" ).toString() );
-					attributes.put( "response", responseNode.toString() );
-					attributes.put( "response.cookies", responseNode.get( "cookies" ).toString() );
-					attributes.put( "response.headers", responseNode.get( "headers" ).toString() );
-					attributes.put( "datetime", KaNiaFi.normalizeUnixTimestamp(
-						rootNode.get( "unixtime" ).asDouble(), 
-						context.getProperty( DATETIME_FORMAT_PROPERTY ).getValue(),
-						context.getProperty( TIMEZONE_ID_PROPERTY ).getValue()
-					));
+					envelope.root.set( name, envelope.response );
 				}
 				else {
-					relationship = INVALID_RELATIONSHIP;
+					envelope.root.set( name, reader.readTree( parser ) );
 				}
-				FlowFile results = session.write( flowFile, new StreamCallback() {
-						@Override
-						public void process( InputStream in, OutputStream out ) throws IOException {
-							out.write( content.getBytes( Charset.forName( context.getProperty( CHARSET_PROPERTY ).getValue() ) ) );
-						}
+			}
+			if( parser.currentToken() != JsonToken.END_OBJECT || parser.nextToken() != null ) {
+				throw new JsonParseException( parser, "Unexpected end of Kanashī response" );
+			}
+			if( envelope.content == false ) {
+				throw new JsonParseException( parser, "Kanashī response has no content" );
+			}
+		}
+	}
+
+	/**
+	 * Copies the current value to the generator, adding a {@code <field>_datetime}
+	 * sibling after numeric datetime fields unless the object already has that key.
+	 * A source key which comes after an added sibling is left out, so the output
+	 * never holds the same key twice.
+	 */
+	private void copy( JsonParser parser, JsonGenerator generator, Envelope envelope ) throws IOException {
+		Set<String> datetimeFields = this.datetimeFields;
+		Deque<Set<String>> keys = datetimeFields.isEmpty() ? null : new ArrayDeque<>();
+		String field = null;
+		String name = null;
+		int depth = 0;
+		JsonToken token = parser.currentToken();
+		while( true ) {
+			if( token == null ) {
+				throw new JsonParseException( parser, "Unexpected end of response content" );
+			}
+			if( token == JsonToken.FIELD_NAME ) {
+				field = parser.getCurrentName();
+				if( keys != null && keys.peek().add( field ) == false ) {
+					parser.nextToken();
+					parser.skipChildren();
+					field = null;
+					token = parser.nextToken();
+					continue;
+				}
+				if( depth == 1 ) {
+					name = field;
+				}
+			}
+			else {
+				if( depth == 1 && name != null ) {
+					String value = token.isScalarValue() ? parser.getText() : "";
+					if( name.equals( "checkpoint_url" ) ) {
+						envelope.checkpointUrl = value;
+					}
+					else if( name.equals( "lock" ) ) {
+						envelope.checkpointLock = value;
+					}
+					name = null;
+				}
+				if( token.isStructStart() ) {
+					depth++;
+					if( keys != null && token == JsonToken.START_OBJECT ) {
+						keys.push( new HashSet<>() );
+					}
+				}
+				else if( token.isStructEnd() ) {
+					depth--;
+					if( keys != null && token == JsonToken.END_OBJECT ) {
+						keys.pop();
 					}
-				);
-				if( context.getProperty( ALLOW_SET_ATTRIBUTE_PROPERTY ).asBoolean() ) {
-					results = session.putAllAttributes( results, attributes );
-					logger.info( "Successfully added Attributes {} into {}", new Object[]{
-						attributes,
-						results
-					});
 				}
-				session.transfer( results, relationship );
-				session.commit();
-				return;
 			}
-			catch( Exception e ) {
-				if( e instanceof IOException ) {
-					logger.error( "Failed to parse FlowFile contents {}", new Object[] { flowFile } );
+			generator.copyCurrentEvent( parser );
+			if( token != JsonToken.FIELD_NAME ) {
+				if( field != null && token.isNumeric() && datetimeFields.contains( field ) && keys.peek().add( field + "_datetime" ) ) {
+					generator.writeStringField( field + "_datetime", normalizer.normalize( parser.getDoubleValue() ) );
 				}
-				session.transfer( flowFile, FAILURE_RELATIONSHIP );
+				field = null;
+			}
+			if( depth == 0 ) {
+				break;
 			}
+			token = parser.nextToken();
+		}
+		envelope.content = true;
+	}
+
+	private void route( final ProcessContext context, Envelope envelope, final FlowFile flowFile ) throws IOException {
+		ComponentLog logger = getLogger();
+		JsonNode rootNode = envelope.root;
+		JsonNode responseNode = required( rootNode, "response" );
+		String target = required( rootNode, "target" ).asText();
+		Map<String, String> attributes = envelope.attributes;
+		if( URL_PATTERN.matcher( target ).matches() ) {
+			if( UNAUTHORIZED_PATTERN.matcher( required( responseNode, "status" ).asText() ).matches() ) {
+				envelope.relationship = UNAUTHORIZED_RELATIONSHIP;
+				logger.debug( "Request {} is Unauthorized {}", new Object[]{ target, flowFile }  );
+			}
+			else if( envelope.checkpointUrl != null ) {
+				if( envelope.checkpointLock == null ) {
+					throw new IOException( "Checkpointed response has no lock" );
+				}
+				attributes.put( "checkpoint.url", envelope.checkpointUrl );
+				attributes.put( "checkpoint.lock", envelope.checkpointLock );
+				envelope.relationship = CHECKPOINT_RELATIONSHIP;
+				logger.debug( "Request {} is Checkpointed {}", new Object[]{ target, flowFile } );
+			}
+			else {
+				envelope.relationship = SUCCESS_RELATIONSHIP;
+			}
+			project( context, envelope );
+			JsonNode unixtime = rootNode.get( "unixtime" );
+			if( unixtime != null ) {
+				attributes.put( "datetime", normalizer.normalize( unixtime.asDouble() ) );
+			}
+		}
+		else {
+			envelope.relationship = INVALID_RELATIONSHIP;
+		}
+	}
+
+	private void project( final ProcessContext context, Envelope envelope ) {
+		long attributeMaxSize = context.getProperty( ATTRIBUTE_MAX_SIZE_PROPERTY ).isSet()
+			? context.getProperty( ATTRIBUTE_MAX_SIZE_PROPERTY ).asDataSize( DataUnit.B ).longValue()
+			: Long.MAX_VALUE;
+		long attributesMaxSize = context.getProperty( ATTRIBUTES_MAX_SIZE_PROPERTY ).isSet()
+			? context.getProperty( ATTRIBUTES_MAX_SIZE_PROPERTY ).asDataSize( DataUnit.B ).longValue()
+			: Long.MAX_VALUE;
+		long total = 0;
+		List<String> overflow = new ArrayList<>();
+		for( Map.Entry<String, JsonPointer> attribute : projection.entrySet() ) {
+			JsonNode node = envelope.root.at( attribute.getValue() );
+			if( node.isMissingNode() ) {
+				continue;
+			}
+			String value = node.isValueNode() && node.isNull() == false ? node.asText() : node.toString();
+			long size = size( value );
+			if( size > attributeMaxSize || size > attributesMaxSize - total ) {
+				overflow.add( attribute.getKey() );
+				continue;
+			}
+			envelope.attributes.put( attribute.getKey(), value );
+			total += size;
+		}
+		if( overflow.isEmpty() == false ) {
+			envelope.attributes.put( "attributes.overflow", String.join( ",", overflow ) );
+			envelope.overflow = true;
+		}
+	}
+
+	private static long size( String value ) {
+		long size = value.length();
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			if( c >= 0x800 ) {
+				size += Character.isSurrogate( c ) ? 1 : 2;
+			}
+			else if( c >= 0x80 ) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	private static JsonNode required( JsonNode node, String name ) throws IOException {
+		JsonNode value = node.get( name );
+		if( value == null ) {
+			throw new IOException( "Kanashī response has no " + name );
 		}
+		return value;
 	}
 	
 }
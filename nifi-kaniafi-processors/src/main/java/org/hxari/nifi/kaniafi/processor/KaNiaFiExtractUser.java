@@ -18,6 +18,7 @@ package org.hxari.nifi.kaniafi.processor;
 
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
@@ -29,27 +30,31 @@ import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.hxari.nifi.kaniafi.service.KaNiaFiSchemaRegistry;
+import org.hxari.nifi.kaniafi.service.KaNiaFiUserCache;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 
-import dev.harrel.jsonschema.Validator;
-import dev.harrel.jsonschema.ValidatorFactory;
-import dev.harrel.jsonschema.Validator.Result;
-
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
-import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 @Tags({ "extract", "instagram", "kanashī", "kaniafi", "request", "response", "user" })
 @CapabilityDescription( "Search and extract all data containing user data, this will only extract if the data contains user schema criteria, such as username, fullname, id, or primary key" )
@@ -63,14 +68,136 @@ public class KaNiaFiExtractUser extends AbstractProcessor {
         .addValidator( StandardValidators.FILE_EXISTS_VALIDATOR )
         .build();
 	
+	final public static PropertyDescriptor SCHEME_REGISTRY_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "scheme.registry" )
+        .displayName( "Scheme Registry" )
+        .description( "Shared Scheme Registry service, when set the Scheme Source and Scheme Reload Interval of this processor are ignored and every processor referencing the service validates against the same compiled copy" )
+        .required( false )
+        .identifiesControllerService( KaNiaFiSchemaRegistry.class )
+        .build();
+
+	final public static PropertyDescriptor SCHEME_RELOAD_INTERVAL_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "scheme.reload.interval" )
+        .displayName( "Scheme Reload Interval" )
+        .description( "How often the Scheme Source is checked for changes, the compiled scheme is only replaced when the file content has changed" )
+        .required( true )
+        .defaultValue( "10 sec" )
+        .addValidator( StandardValidators.TIME_PERIOD_VALIDATOR )
+        .build();
+
+	final public static PropertyDescriptor BATCH_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "batch.size" )
+        .displayName( "Batch Size" )
+        .description( "Maximum number of FlowFiles extracted in a single session, the session is committed once for the whole batch" )
+        .required( true )
+        .defaultValue( "10" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
 	final public static PropertyDescriptor TRANSFER_TYPE_PROPERTY = new PropertyDescriptor.Builder()
         .name( "transfer.type" )
         .displayName( "Transfer Type" )
-        .description( "Set the FlowFile that will be forwarded, if set to Object, each User Object will be passed one by one to the relation, if set to Array it will be made into one FlowFile with the contents of a List of User Objects" )
+        .description( "Set the FlowFile that will be forwarded, if set to Object, each User Object will be passed one by one to the relation, if set to Array it will be made into one FlowFile with the contents of a List of User Objects, if set to Chunked they will be split into FlowFiles of at most Chunk Size User Objects" )
         .defaultValue( "Object" )
         .addValidator( StandardValidators.NON_EMPTY_VALIDATOR )
         .build();
 
+	final public static PropertyDescriptor CHUNK_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "chunk.size" )
+        .displayName( "Chunk Size" )
+        .description( "Maximum number of User Objects written into one FlowFile when the Transfer Type is Chunked" )
+        .required( true )
+        .defaultValue( "100" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+	final public static String CHUNK_FORMAT_ARRAY = "JSON Array";
+	final public static String CHUNK_FORMAT_NDJSON = "NDJSON";
+
+	final public static PropertyDescriptor CHUNK_FORMAT_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "chunk.format" )
+        .displayName( "Chunk Format" )
+        .description( "Format of the FlowFiles written when the Transfer Type is Chunked, a JSON Array of User Objects or one User Object per line" )
+        .required( true )
+        .allowableValues( CHUNK_FORMAT_ARRAY, CHUNK_FORMAT_NDJSON )
+        .defaultValue( CHUNK_FORMAT_ARRAY )
+        .build();
+
+	final public static PropertyDescriptor ATTRIBUTES_INCLUDE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "attributes.include" )
+        .displayName( "Include Attributes" )
+        .description( "Regular expression of the original FlowFile attributes inherited by the User FlowFiles, all attributes are inherited when not set" )
+        .required( false )
+        .addValidator( StandardValidators.REGULAR_EXPRESSION_VALIDATOR )
+        .build();
+
+	final public static PropertyDescriptor ATTRIBUTES_EXCLUDE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "attributes.exclude" )
+        .displayName( "Exclude Attributes" )
+        .description( "Regular expression of the original FlowFile attributes not inherited by the User FlowFiles, such as request.*|response.*|scheme.json for the large attributes written by KaNiaFiExtract and KaNiaFiBranching" )
+        .required( false )
+        .addValidator( StandardValidators.REGULAR_EXPRESSION_VALIDATOR )
+        .build();
+
+	final public static long NO_PK = Long.MIN_VALUE;
+
+	final public static String DEDUPLICATION_NONE = "None";
+	final public static String DEDUPLICATION_KEY = "Primary Key";
+	final public static String DEDUPLICATION_KEY_CONTENT = "Primary Key and Content";
+
+	final public static PropertyDescriptor DEDUPLICATION_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "deduplication" )
+        .displayName( "Deduplication" )
+        .description( "Route the User Objects whose pk or id was already extracted within the Deduplication Window to duplicate, Primary Key and Content still passes users whose content has changed. The index is held in memory and starts empty whenever the processor is started" )
+        .required( true )
+        .allowableValues( DEDUPLICATION_NONE, DEDUPLICATION_KEY, DEDUPLICATION_KEY_CONTENT )
+        .defaultValue( DEDUPLICATION_NONE )
+        .build();
+
+	final public static PropertyDescriptor DEDUPLICATION_WINDOW_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "deduplication.window" )
+        .displayName( "Deduplication Window" )
+        .description( "Minimum time a primary key is remembered, keys are forgotten between one and two windows after they were last seen" )
+        .required( true )
+        .defaultValue( "1 hour" )
+        .addValidator( StandardValidators.TIME_PERIOD_VALIDATOR )
+        .build();
+
+	final public static PropertyDescriptor DEDUPLICATION_CAPACITY_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "deduplication.capacity" )
+        .displayName( "Deduplication Capacity" )
+        .description( "Number of primary keys remembered per window, the window is cut short once it is reached" )
+        .required( true )
+        .defaultValue( "100000" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+	final public static PropertyDescriptor USER_CACHE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "user.cache" )
+        .displayName( "User Cache" )
+        .description( "User Cache service the User Objects with a pk or id are stored in as the latest record of their user, for KaNiaFiLookupUser to read" )
+        .required( false )
+        .identifiesControllerService( KaNiaFiUserCache.class )
+        .build();
+
+	final public static String EXTRACTION_MODE_STREAMING = "Streaming";
+	final public static String EXTRACTION_MODE_TREE = "Tree";
+
+	final public static PropertyDescriptor EXTRACTION_MODE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "extraction.mode" )
+        .displayName( "Extraction Mode" )
+        .description( "Tree reads the whole FlowFile content into memory before searching it. Streaming reads the content twice, first to locate the objects whose keys may match the scheme, then to read only those objects, so memory is bounded by the largest candidate object instead of the FlowFile content" )
+        .required( true )
+        .allowableValues( EXTRACTION_MODE_TREE, EXTRACTION_MODE_STREAMING )
+        .defaultValue( EXTRACTION_MODE_TREE )
+        .build();
+
+	final public static Relationship DUPLICATE_RELATIONSHIP = new Relationship.Builder()
+        .name( "duplicate" )
+        .description( "User Objects already extracted within the Deduplication Window will be passed to this relationship" )
+		.autoTerminateDefault( true )
+        .build();
+
 	final public static Relationship FAILURE_RELATIONSHIP = new Relationship.Builder()
         .name( "failure" )
         .description( "When a failure occurs while parsing the contents of a FlowFile or when JSON Scheme not found or invalid, or invalid property value" )
@@ -94,6 +221,10 @@ public class KaNiaFiExtractUser extends AbstractProcessor {
         .build();
 	
 	private List<PropertyDescriptor> descriptors;
+	private volatile Pattern exclude;
+	private volatile Pattern include;
+	private volatile KaNiaFiUserIndex index;
+	private volatile KaNiaFiSchemeHolder holder;
 	private Set<Relationship> relationships;
 
 	@Override
@@ -101,10 +232,23 @@ public class KaNiaFiExtractUser extends AbstractProcessor {
 		
 		descriptors = new ArrayList<>();
 		descriptors.add( SCHEME_SOURCE_PROPERTY );
+		descriptors.add( SCHEME_RELOAD_INTERVAL_PROPERTY );
+		descriptors.add( SCHEME_REGISTRY_PROPERTY );
+		descriptors.add( BATCH_SIZE_PROPERTY );
 		descriptors.add( TRANSFER_TYPE_PROPERTY );
+		descriptors.add( CHUNK_SIZE_PROPERTY );
+		descriptors.add( CHUNK_FORMAT_PROPERTY );
+		descriptors.add( EXTRACTION_MODE_PROPERTY );
+		descriptors.add( ATTRIBUTES_INCLUDE_PROPERTY );
+		descriptors.add( ATTRIBUTES_EXCLUDE_PROPERTY );
+		descriptors.add( DEDUPLICATION_PROPERTY );
+		descriptors.add( DEDUPLICATION_WINDOW_PROPERTY );
+		descriptors.add( DEDUPLICATION_CAPACITY_PROPERTY );
+		descriptors.add( USER_CACHE_PROPERTY );
 		descriptors = Collections.unmodifiableList( descriptors );
 		
 		relationships = new HashSet<>();
+		relationships.add( DUPLICATE_RELATIONSHIP );
 		relationships.add( FAILURE_RELATIONSHIP );
 		relationships.add( NONE_RELATIONSHIP );
 		relationships.add( ORIGINAL_RELATIONSHIP );
@@ -124,103 +268,609 @@ public class KaNiaFiExtractUser extends AbstractProcessor {
 
 	@OnScheduled
 	public void onScheduled( final ProcessContext context ) {
+		if( context.getProperty( SCHEME_REGISTRY_PROPERTY ).isSet() ) {
+			holder = new KaNiaFiSchemeHolder( context.getProperty( SCHEME_REGISTRY_PROPERTY ).asControllerService( KaNiaFiSchemaRegistry.class ), getLogger() );
+		}
+		else {
+			holder = new KaNiaFiSchemeHolder(
+				context.getProperty( SCHEME_SOURCE_PROPERTY ).getValue(),
+				context.getProperty( SCHEME_RELOAD_INTERVAL_PROPERTY ).asTimePeriod( TimeUnit.NANOSECONDS ),
+				getLogger()
+			);
+		}
+		include = context.getProperty( ATTRIBUTES_INCLUDE_PROPERTY ).isSet() ? Pattern.compile( context.getProperty( ATTRIBUTES_INCLUDE_PROPERTY ).getValue() ) : null;
+		exclude = context.getProperty( ATTRIBUTES_EXCLUDE_PROPERTY ).isSet() ? Pattern.compile( context.getProperty( ATTRIBUTES_EXCLUDE_PROPERTY ).getValue() ) : null;
+		index = context.getProperty( DEDUPLICATION_PROPERTY ).getValue().equals( DEDUPLICATION_NONE ) ? null : new KaNiaFiUserIndex(
+			context.getProperty( DEDUPLICATION_CAPACITY_PROPERTY ).asInteger(),
+			context.getProperty( DEDUPLICATION_WINDOW_PROPERTY ).asTimePeriod( TimeUnit.NANOSECONDS ),
+			System.nanoTime()
+		);
+		try {
+			holder.get();
+		}
+		catch( IOException e ) {
+			getLogger().error( "Failed to compile Scheme {}", new Object[]{ holder.source(), e } );
+		}
 	}
 
 	@Override
 	public void onTrigger( final ProcessContext context, final ProcessSession session ) {
-		FlowFile flowFile = session.get();
-		if( flowFile != null ) {
-            ComponentLog logger = getLogger();
-            String schemeSource = context.getProperty( SCHEME_SOURCE_PROPERTY ).getValue();
-            InputStream flowFileInputStream = session.read( flowFile );
-            try {
-                ValidatorFactory validatorFactory = new ValidatorFactory();
-                Validator validator = validatorFactory.createValidator();
-                InputStream schemeInputStream = new FileInputStream( schemeSource );
-                JsonNode schemeRootNode = KaNiaFi.objectMapper.readTree( schemeInputStream );
-				URI schemeUri = validator.registerSchema( schemeRootNode );
-                try {
-                    JsonNode flowFileNode = KaNiaFi.objectMapper.readTree( flowFileInputStream );
-					List<JsonNode> users = extract( flowFileNode, contentNode -> validator.validate( schemeUri, contentNode ) );
-					logger.info( "Found users {} on FlowFile {}", new Object[]{ users.size(), flowFile } );
-					if( users.size() >= 1 ) {
-						String transfer = context.getProperty( TRANSFER_TYPE_PROPERTY ).getValue();
-						Relationship relationship = ORIGINAL_RELATIONSHIP;
-						if( transfer.equalsIgnoreCase( "Object" ) ) {
-							List<FlowFile> flowFiles = new ArrayList<>();
-							for( JsonNode user : users ) {
-								String userJson = user.toString();
-								FlowFile userFlowFile = session.create();
-								userFlowFile = session.putAllAttributes( userFlowFile, copy( flowFile, userFlowFile ) );
-								userFlowFile = session.write( userFlowFile, outputStream -> {
-									outputStream.write( userJson.getBytes( Charset.forName( "UTF-8" ) ) );
-								});
-								flowFiles.add( userFlowFile );
-							}
-							session.transfer( flowFiles, SUCCESS_RELATIONSHIP );
-						}
-						else if( transfer.equalsIgnoreCase( "Array" ) ) {
-							String usersJson = users.toString();
-							FlowFile usersFlowFile = session.create();
-							usersFlowFile = session.putAllAttributes( usersFlowFile, copy( flowFile, usersFlowFile ) );
-							usersFlowFile = session.write( usersFlowFile, outputStream -> {
-								outputStream.write( usersJson.getBytes( Charset.forName( "UTF-8" ) ) );
-							});
-							session.transfer( usersFlowFile, SUCCESS_RELATIONSHIP );
+		List<FlowFile> flowFiles = session.get( context.getProperty( BATCH_SIZE_PROPERTY ).asInteger() );
+		if( flowFiles.isEmpty() ) {
+			return;
+		}
+		KaNiaFiScheme scheme;
+		try {
+			scheme = holder.get();
+		}
+		catch( IOException e ) {
+			if( e instanceof FileNotFoundException ) {
+				getLogger().error( "No such file or directory {} {}", new Object[]{ holder.source(), flowFiles } );
+			}
+			else {
+				getLogger().error( "Failed to parse Scheme contents {}", new Object[] { flowFiles } );
+			}
+			session.transfer( flowFiles, FAILURE_RELATIONSHIP );
+			return;
+		}
+		KaNiaFiScheme.Entry entry = entry( scheme );
+		if( entry == null ) {
+			getLogger().error( "No user entry in Scheme {} {}", new Object[]{ holder.source(), flowFiles } );
+			session.transfer( flowFiles, FAILURE_RELATIONSHIP );
+			return;
+		}
+		List<Cached> cached = new ArrayList<>();
+		Map<Long, Long> seen = new HashMap<>();
+		for( FlowFile flowFile : flowFiles ) {
+			process( context, session, scheme, entry, flowFile, cached, seen );
+		}
+		if( cached.isEmpty() == false || seen.isEmpty() == false ) {
+			KaNiaFiUserCache cache = cached.isEmpty() ? null : context.getProperty( USER_CACHE_PROPERTY ).asControllerService( KaNiaFiUserCache.class );
+			KaNiaFiUserIndex index = this.index;
+			session.commitAsync( () -> {
+				for( Cached user : cached ) {
+					if( cache.put( user.pk, user.record ) == false ) {
+						getLogger().warn( "User {} is too large for the User Cache", new Object[]{ user.pk } );
+					}
+				}
+				long now = System.nanoTime();
+				for( Map.Entry<Long, Long> user : seen.entrySet() ) {
+					index.record( user.getKey(), user.getValue(), now );
+				}
+			});
+		}
+	}
+
+	/**
+	 * The only entry of a single scheme source such as scheme-user.json, or
+	 * the user entry of a scheme list shared through the Scheme Registry.
+	 */
+	private static KaNiaFiScheme.Entry entry( KaNiaFiScheme scheme ) {
+		if( scheme.entries().size() == 1 ) {
+			return scheme.entries().get( 0 );
+		}
+		for( KaNiaFiScheme.Entry entry : scheme.entries() ) {
+			if( entry.type() == KaNiaFiType.USER ) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private void process( final ProcessContext context, final ProcessSession session, final KaNiaFiScheme scheme, final KaNiaFiScheme.Entry entry, final FlowFile flowFile, final List<Cached> cached, final Map<Long, Long> seen ) {
+		ComponentLog logger = getLogger();
+		Set<String> removal = removal( flowFile );
+		Sink sink = sink( context, session, flowFile, removal, SUCCESS_RELATIONSHIP );
+		KaNiaFiUserIndex index = this.index;
+		if( index != null && ( sink instanceof CountSink ) == false ) {
+			sink = new DedupeSink( index, seen, context.getProperty( DEDUPLICATION_PROPERTY ).getValue().equals( DEDUPLICATION_KEY_CONTENT ), 
+				sink, sink( context, session, flowFile, removal, DUPLICATE_RELATIONSHIP ) );
+		}
+		if( context.getProperty( USER_CACHE_PROPERTY ).isSet() && ( sink instanceof CountSink ) == false ) {
+			sink = new CacheSink( cached, sink );
+		}
+		try {
+			if( context.getProperty( EXTRACTION_MODE_PROPERTY ).getValue().equals( EXTRACTION_MODE_STREAMING ) ) {
+				stream( session, flowFile, scheme, entry, sink );
+			}
+			else {
+				JsonNode flowFileNode;
+				try( InputStream flowFileInputStream = session.read( flowFile ) ) {
+					flowFileNode = KaNiaFi.objectMapper.readTree( flowFileInputStream );
+				}
+				extract( flowFileNode, scheme, entry, sink );
+			}
+		}
+		catch( IOException e ) {
+			sink.abort();
+			logger.error( "Failed to parse FlowFile contents {}", new Object[] { flowFile } );
+			session.transfer( flowFile, FAILURE_RELATIONSHIP );
+			return;
+		}
+		logger.info( "Found users {} on FlowFile {}", new Object[]{ sink.count(), flowFile } );
+		if( sink.count() >= 1 ) {
+			Relationship relationship = ORIGINAL_RELATIONSHIP;
+			if( sink instanceof CountSink ) {
+				relationship = FAILURE_RELATIONSHIP;
+				logger.error( "Invalid FlowFile transfer type {}", new Object[]{ flowFile } );
+			}
+			else {
+				try {
+					sink.finish();
+				}
+				catch( IOException e ) {
+					sink.abort();
+					relationship = FAILURE_RELATIONSHIP;
+					logger.error( "Failed to write users of FlowFile {}", new Object[]{ flowFile, e } );
+				}
+			}
+			session.transfer( flowFile, relationship );
+		}
+		else {
+			sink.abort();
+			session.transfer( flowFile, NONE_RELATIONSHIP );
+		}
+	}
+
+	private Sink sink( final ProcessContext context, final ProcessSession session, final FlowFile flowFile, Set<String> removal, Relationship relationship ) {
+		String transfer = context.getProperty( TRANSFER_TYPE_PROPERTY ).getValue();
+		if( transfer.equalsIgnoreCase( "Object" ) ) {
+			return new ObjectSink( session, flowFile, removal, relationship );
+		}
+		else if( transfer.equalsIgnoreCase( "Array" ) ) {
+			return new ChunkSink( session, flowFile, removal, relationship, Integer.MAX_VALUE, false );
+		}
+		else if( transfer.equalsIgnoreCase( "Chunked" ) ) {
+			return new ChunkSink( session, flowFile, removal, relationship, 
+				context.getProperty( CHUNK_SIZE_PROPERTY ).asInteger(), 
+				context.getProperty( CHUNK_FORMAT_PROPERTY ).getValue().equals( CHUNK_FORMAT_NDJSON ) );
+		}
+		return new CountSink();
+	}
+
+	/**
+	 * Receives the users of a FlowFile one at a time as they are found, so
+	 * the users never have to be held together. Nothing is transferred before
+	 * finish, and abort removes whatever was already written.
+	 */
+	private interface Sink {
+
+		void accept( JsonNode user ) throws IOException;
+
+		void abort();
+
+		int count();
+
+		void finish() throws IOException;
+
+	}
+
+	private static final class CountSink implements Sink {
+
+		private int count;
+
+		@Override
+		public void accept( JsonNode user ) {
+			this.count++;
+		}
+
+		@Override
+		public void abort() {
+		}
+
+		@Override
+		public int count() {
+			return this.count;
+		}
+
+		@Override
+		public void finish() {
+		}
+
+	}
+
+	private final class ObjectSink implements Sink {
+
+		private final List<FlowFile> flowFiles = new ArrayList<>();
+		private final FlowFile parent;
+		private final Relationship relationship;
+		private final Set<String> removal;
+		private final ProcessSession session;
+
+		private ObjectSink( ProcessSession session, FlowFile parent, Set<String> removal, Relationship relationship ) {
+			this.parent = parent;
+			this.relationship = relationship;
+			this.removal = removal;
+			this.session = session;
+		}
+
+		@Override
+		public void accept( JsonNode user ) {
+			FlowFile userFlowFile = child( this.session, this.parent, this.removal );
+			userFlowFile = this.session.write( userFlowFile, outputStream -> KaNiaFi.objectMapper.writeValue( outputStream, user ) );
+			this.flowFiles.add( userFlowFile );
+		}
+
+		@Override
+		public void abort() {
+			this.session.remove( this.flowFiles );
+			this.flowFiles.clear();
+		}
+
+		@Override
+		public int count() {
+			return this.flowFiles.size();
+		}
+
+		@Override
+		public void finish() {
+			this.session.transfer( this.flowFiles, this.relationship );
+		}
+
+	}
+
+	private static final class Cached {
+
+		private final long pk;
+		private final byte[] record;
+
+		private Cached( long pk, byte[] record ) {
+			this.pk = pk;
+			this.record = record;
+		}
+
+	}
+
+	/**
+	 * Keeps every user with a primary key for the User Cache while handing
+	 * it to the target sink. The users are only added to the cached ones of
+	 * the batch once the target is finished, and the batch is only stored in
+	 * the User Cache after the session is committed, so the cache never holds
+	 * users which did not reach downstream.
+	 */
+	private static final class CacheSink implements Sink {
+
+		private final List<Cached> cached;
+		private final List<Cached> pending = new ArrayList<>();
+		private final Sink target;
+
+		private CacheSink( List<Cached> cached, Sink target ) {
+			this.cached = cached;
+			this.target = target;
+		}
+
+		@Override
+		public void accept( JsonNode user ) throws IOException {
+			long pk = pk( user );
+			if( pk != NO_PK ) {
+				this.pending.add( new Cached( pk, KaNiaFi.objectMapper.writeValueAsBytes( user ) ) );
+			}
+			this.target.accept( user );
+		}
+
+		@Override
+		public void abort() {
+			this.pending.clear();
+			this.target.abort();
+		}
+
+		@Override
+		public int count() {
+			return this.target.count();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			this.target.finish();
+			this.cached.addAll( this.pending );
+			this.pending.clear();
+		}
+
+	}
+
+	/**
+	 * Hands the users already seen, by primary key and optionally content, to
+	 * the duplicate sink and every other user to the target sink. The index
+	 * is only looked up here, the users are added to the seen ones of the
+	 * batch once both sinks are finished and only recorded in the index after
+	 * the session is committed.
+	 */
+	private static final class DedupeSink implements Sink {
+
+		private final boolean content;
+		private final Sink duplicates;
+		private final KaNiaFiUserIndex index;
+		private final Map<Long, Long> pending = new HashMap<>();
+		private final Map<Long, Long> seen;
+		private final Sink target;
+
+		private DedupeSink( KaNiaFiUserIndex index, Map<Long, Long> seen, boolean content, Sink target, Sink duplicates ) {
+			this.content = content;
+			this.duplicates = duplicates;
+			this.index = index;
+			this.seen = seen;
+			this.target = target;
+		}
+
+		@Override
+		public void accept( JsonNode user ) throws IOException {
+			long pk = pk( user );
+			if( pk == NO_PK ) {
+				this.target.accept( user );
+				return;
+			}
+			long hash = this.content ? KaNiaFiUserIndex.digest( KaNiaFi.objectMapper.writeValueAsBytes( user ) ) : 0;
+			Long previous = this.pending.containsKey( pk ) ? this.pending.get( pk ) : this.seen.get( pk );
+			this.pending.put( pk, hash );
+			if( previous != null ? previous == hash : this.index.seen( pk, hash, System.nanoTime() ) ) {
+				this.duplicates.accept( user );
+			}
+			else {
+				this.target.accept( user );
+			}
+		}
+
+		@Override
+		public void abort() {
+			this.pending.clear();
+			this.target.abort();
+			this.duplicates.abort();
+		}
+
+		@Override
+		public int count() {
+			return this.target.count() + this.duplicates.count();
+		}
+
+		@Override
+		public void finish() throws IOException {
+			this.target.finish();
+			this.duplicates.finish();
+			this.seen.putAll( this.pending );
+			this.pending.clear();
+		}
+
+	}
+
+	/**
+	 * Writes users through a JsonGenerator straight into the output, at most
+	 * size users per FlowFile, as a JSON array or as NDJSON.
+	 */
+	private final class ChunkSink implements Sink {
+
+		private int chunk;
+		private int count;
+		private final List<FlowFile> flowFiles = new ArrayList<>();
+		private JsonGenerator generator;
+		private final boolean ndjson;
+		private final FlowFile parent;
+		private final Relationship relationship;
+		private final Set<String> removal;
+		private final ProcessSession session;
+		private final int size;
+
+		private ChunkSink( ProcessSession session, FlowFile parent, Set<String> removal, Relationship relationship, int size, boolean ndjson ) {
+			this.ndjson = ndjson;
+			this.parent = parent;
+			this.relationship = relationship;
+			this.removal = removal;
+			this.session = session;
+			this.size = size;
+		}
+
+		@Override
+		public void accept( JsonNode user ) throws IOException {
+			if( this.generator == null ) {
+				FlowFile usersFlowFile = child( this.session, this.parent, this.removal );
+				this.flowFiles.add( usersFlowFile );
+				this.generator = KaNiaFi.objectMapper.getFactory().createGenerator( this.session.write( usersFlowFile ), JsonEncoding.UTF8 );
+				if( this.ndjson ) {
+					this.generator.setRootValueSeparator( null );
+				}
+				else {
+					this.generator.writeStartArray();
+				}
+			}
+			KaNiaFi.objectMapper.writeTree( this.generator, user );
+			if( this.ndjson ) {
+				this.generator.writeRaw( '\n' );
+			}
+			this.count++;
+			if( ++this.chunk == this.size ) {
+				this.close();
+			}
+		}
+
+		@Override
+		public void abort() {
+			if( this.generator != null ) {
+				try {
+					this.generator.close();
+				}
+				catch( IOException e ) {
+				}
+				this.generator = null;
+			}
+			this.session.remove( this.flowFiles );
+			this.flowFiles.clear();
+		}
+
+		private void close() throws IOException {
+			if( this.ndjson == false ) {
+				this.generator.writeEndArray();
+			}
+			this.generator.close();
+			this.generator = null;
+			int last = this.flowFiles.size() - 1;
+			this.flowFiles.set( last, this.session.putAttribute( this.flowFiles.get( last ), "record.count", String.valueOf( this.chunk ) ) );
+			this.chunk = 0;
+		}
+
+		@Override
+		public int count() {
+			return this.count;
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if( this.generator != null ) {
+				this.close();
+			}
+			this.session.transfer( this.flowFiles, this.relationship );
+		}
+
+	}
+
+	/**
+	 * Parent attributes left out of the children by the include and exclude
+	 * patterns, computed once per parent and removed from every child.
+	 */
+	private Set<String> removal( FlowFile parent ) {
+		Pattern include = this.include;
+		Pattern exclude = this.exclude;
+		if( include == null && exclude == null ) {
+			return Collections.emptySet();
+		}
+		Set<String> removal = new HashSet<>();
+		for( String key : parent.getAttributes().keySet() ) {
+			if( key.equals( CoreAttributes.UUID.key() ) ) {
+				continue;
+			}
+			if( ( include != null && include.matcher( key ).matches() == false ) || ( exclude != null && exclude.matcher( key ).matches() ) ) {
+				removal.add( key );
+			}
+		}
+		return removal;
+	}
+
+	/**
+	 * Primary key of a user from its pk, or else id, field as a number or
+	 * a numeric string, NO_PK when it has none.
+	 */
+	static long pk( JsonNode user ) {
+		JsonNode key = user.has( "pk" ) ? user.get( "pk" ) : user.get( "id" );
+		if( key != null && key.canConvertToLong() ) {
+			return key.asLong();
+		}
+		if( key != null && key.isTextual() ) {
+			try {
+				return Long.parseLong( key.asText() );
+			}
+			catch( NumberFormatException e ) {
+			}
+		}
+		return NO_PK;
+	}
+
+	private static FlowFile child( ProcessSession session, FlowFile parent, Set<String> removal ) {
+		FlowFile child = session.create( parent );
+		if( removal.isEmpty() == false ) {
+			child = session.removeAllAttributes( child, removal );
+		}
+		return session.putAttribute( child, "scheme.type", "user" );
+	}
+
+	/**
+	 * Preorder walk over every container of the tree on an explicit stack of
+	 * child iterators. A node is only validated when the classifier admits it
+	 * for the entry, which rules out most nodes by their keys alone.
+	 */
+	private static void extract( JsonNode rootNode, KaNiaFiScheme scheme, KaNiaFiScheme.Entry entry, Sink results ) throws IOException {
+		KaNiaFiClassifier classifier = scheme.classifier();
+		Deque<Iterator<JsonNode>> stack = new ArrayDeque<>();
+		visit( rootNode, scheme, classifier, entry, results );
+		stack.push( rootNode.elements() );
+		while( stack.isEmpty() == false ) {
+			Iterator<JsonNode> children = stack.peek();
+			if( children.hasNext() == false ) {
+				stack.pop();
+				continue;
+			}
+			JsonNode childNode = children.next();
+			if( childNode.isContainerNode() ) {
+				visit( childNode, scheme, classifier, entry, results );
+				stack.push( childNode.elements() );
+			}
+		}
+	}
+
+	private static void visit( JsonNode node, KaNiaFiScheme scheme, KaNiaFiClassifier classifier, KaNiaFiScheme.Entry entry, Sink results ) throws IOException {
+		if( classifier.admits( entry, node ) && scheme.validate( entry, node ) ) {
+			results.accept( node );
+		}
+	}
+
+	/**
+	 * Streaming extraction in two passes over the content. The first pass
+	 * only probes the top-level fields of every object and records the byte
+	 * offset of the objects admitted by the classifier, the second pass reads
+	 * those objects alone as trees, so memory is bounded by the largest
+	 * candidate object instead of the whole document.
+	 */
+	private static void stream( final ProcessSession session, final FlowFile flowFile, KaNiaFiScheme scheme, KaNiaFiScheme.Entry entry, Sink results ) throws IOException {
+		long[] candidates = new long[16];
+		int size = 0;
+		try( InputStream flowFileInputStream = session.read( flowFile );
+			JsonParser parser = KaNiaFi.objectMapper.getFactory().createParser( flowFileInputStream ) ) {
+			List<KaNiaFiClassifier.Probe> probes = new ArrayList<>();
+			long[] starts = new long[16];
+			boolean[] objects = new boolean[16];
+			int depth = -1;
+			String name = null;
+			JsonToken token;
+			while( ( token = parser.nextToken() ) != null ) {
+				if( token == JsonToken.FIELD_NAME ) {
+					name = parser.getCurrentName();
+					continue;
+				}
+				if( depth >= 0 && objects[depth] && token.isStructEnd() == false ) {
+					probes.get( depth ).field( name, token );
+				}
+				if( token.isStructStart() ) {
+					depth++;
+					if( depth == objects.length ) {
+						objects = Arrays.copyOf( objects, depth * 2 );
+						starts = Arrays.copyOf( starts, depth * 2 );
+					}
+					objects[depth] = token == JsonToken.START_OBJECT;
+					if( objects[depth] ) {
+						while( depth >= probes.size() ) {
+							probes.add( scheme.classifier().probe( entry ) );
 						}
-						else {
-							relationship = FAILURE_RELATIONSHIP;
-							logger.error( "Invalid FlowFile transfer type {}", new Object[]{ flowFile } );
+						probes.get( depth ).reset();
+						starts[depth] = parser.getTokenLocation().getByteOffset();
+					}
+				}
+				else if( token.isStructEnd() ) {
+					if( objects[depth] && probes.get( depth ).admitted() ) {
+						if( size == candidates.length ) {
+							candidates = Arrays.copyOf( candidates, size * 2 );
 						}
-						session.transfer( flowFile, relationship );
+						candidates[size++] = starts[depth];
 					}
-					else {
-						session.transfer( flowFile, NONE_RELATIONSHIP );
+					depth--;
+				}
+			}
+		}
+		if( size == 0 ) {
+			return;
+		}
+		Arrays.sort( candidates, 0, size );
+		try( InputStream flowFileInputStream = session.read( flowFile );
+			JsonParser parser = KaNiaFi.objectMapper.getFactory().createParser( flowFileInputStream ) ) {
+			int next = 0;
+			JsonToken token;
+			while( next < size && ( token = parser.nextToken() ) != null ) {
+				if( token == JsonToken.START_OBJECT && parser.getTokenLocation().getByteOffset() == candidates[next] ) {
+					JsonNode candidate = KaNiaFi.objectMapper.readTree( parser );
+					extract( candidate, scheme, entry, results );
+					long end = parser.getCurrentLocation().getByteOffset();
+					while( next < size && candidates[next] < end ) {
+						next++;
 					}
-                }
-                catch( IOException e ) {
-                    logger.error( "Failed to parse FlowFile contents {}", new Object[] { flowFile } );
-					session.transfer( flowFile, FAILURE_RELATIONSHIP );
-                }
-            }
-            catch( IOException e ) {
-                if( e instanceof FileNotFoundException ) {
-                    logger.error( "No such file or directory {} {}", new Object[]{ schemeSource, flowFile } );
-                }
-                else {
-                    logger.error( "Failed to parse Scheme contents {}", new Object[] { flowFile } );
-                }
-				session.transfer( flowFile, FAILURE_RELATIONSHIP );
-            }
-		}
-	}
-
-	private Map<String, String> copy( FlowFile source , FlowFile flowFile ) {
-		Map<String, String> attributes = new HashMap<>();
-		Map<String, String> parent = source.getAttributes();
-		for( String key : parent.keySet() ) {
-			String value = parent.get( key );
-			if( flowFile.getAttribute( key ) == null ) {
-				attributes.put( key, value );
-			}
-		}
-		attributes.put( "scheme.type", "user" );
-		return attributes;
-	}
-
-	private List<JsonNode> extract( JsonNode rootNode, Function<JsonNode, Result> validator ) {
-		List<JsonNode> results = new ArrayList<>();
-		if( validator.apply( rootNode ).isValid() ) {
-			results.add( rootNode );
-		}
-        for( JsonNode childNode : rootNode ) {
-            if( childNode.isArray() || childNode.isObject() ) {
-                for( JsonNode item : childNode ) {
-                    results.addAll( extract( item, validator ) );
-                }
-            }
-        }
-		return results;
+				}
+			}
+		}
 	}
 	
 }
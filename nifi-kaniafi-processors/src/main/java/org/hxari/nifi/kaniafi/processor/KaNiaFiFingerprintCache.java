@@ -0,0 +1,156 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU of classification results keyed by the structural fingerprint
+ * of a document, the hash of its key paths and node types down to a depth.
+ *
+ * Values are entry indexes of a {@link KaNiaFiScheme} version, -1 when the
+ * document matched no entry, and the cache is emptied whenever it is asked
+ * about a newer version.
+ *
+ * The capacity is split over up to 16 segments picked by the fingerprint,
+ * each an access ordered map behind its own lock, so concurrent tasks only
+ * contend when they hit the same segment and the eviction order is only
+ * least recently used within a segment.
+ */
+public class KaNiaFiFingerprintCache {
+
+	private static final class Segment extends LinkedHashMap<Long, Integer> {
+
+		private final int capacity;
+		private long version = -1;
+
+		private Segment( int capacity ) {
+			super( 16, 0.75f, true );
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Long, Integer> eldest ) {
+			return this.size() > this.capacity;
+		}
+
+		private boolean current( long version ) {
+			if( this.version < version ) {
+				this.clear();
+				this.version = version;
+			}
+			return this.version == version;
+		}
+
+	}
+
+	final public static int UNKNOWN = -1;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final Segment[] segments;
+
+	public KaNiaFiFingerprintCache( int capacity ) {
+		int count = Integer.highestOneBit( Math.max( 1, Math.min( 16, capacity ) ) );
+		this.segments = new Segment[count];
+		for( int i = 0; i < count; i++ ) {
+			this.segments[i] = new Segment( ( capacity + count - 1 - i ) / count );
+		}
+	}
+
+	public static long fingerprint( JsonNode node, int depth ) {
+		long hash = node.getNodeType().ordinal() + 1;
+		if( depth > 0 ) {
+			if( node.isObject() ) {
+				long fields = 0;
+				Iterator<Map.Entry<String, JsonNode>> iterator = node.fields();
+				while( iterator.hasNext() ) {
+					Map.Entry<String, JsonNode> field = iterator.next();
+					fields += mix( field.getKey().hashCode() * 0x9e3779b97f4a7c15L + fingerprint( field.getValue(), depth - 1 ) );
+				}
+				hash = hash * 0xc2b2ae3d27d4eb4fL + fields;
+			}
+			else if( node.isArray() && node.size() >= 1 ) {
+				hash = hash * 0xc2b2ae3d27d4eb4fL + fingerprint( node.get( 0 ), depth - 1 );
+			}
+		}
+		return mix( hash );
+	}
+
+	private static long mix( long hash ) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	public Integer get( long version, long fingerprint ) {
+		Segment segment = this.segment( fingerprint );
+		Integer entry = null;
+		synchronized( segment ) {
+			if( segment.current( version ) ) {
+				entry = segment.get( fingerprint );
+			}
+		}
+		if( entry != null ) {
+			this.hits.incrementAndGet();
+		}
+		else {
+			this.misses.incrementAndGet();
+		}
+		return entry;
+	}
+
+	public long hits() {
+		return this.hits.get();
+	}
+
+	public long misses() {
+		return this.misses.get();
+	}
+
+	public void put( long version, long fingerprint, int entry ) {
+		Segment segment = this.segment( fingerprint );
+		synchronized( segment ) {
+			if( segment.current( version ) ) {
+				segment.put( fingerprint, entry );
+			}
+		}
+	}
+
+	private Segment segment( long fingerprint ) {
+		return this.segments[( int ) ( fingerprint >>> 32 ) & ( this.segments.length - 1 )];
+	}
+
+	public int size() {
+		int size = 0;
+		for( Segment segment : this.segments ) {
+			synchronized( segment ) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of non-negative values in log-linear buckets, every
+ * power of two is split in eight buckets so a reported percentile is at most
+ * 12.5% above the recorded value.
+ */
+public final class KaNiaFiHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray( ( 64 - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS );
+	private final LongAdder count = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+	private final LongAdder sum = new LongAdder();
+
+	private static int index( long value ) {
+		if( value < SUB_BUCKETS ) {
+			return ( int ) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros( value );
+		int sub = ( int ) ( value >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+		return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + sub;
+	}
+
+	private static long upper( int index ) {
+		if( index < SUB_BUCKETS ) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long lower = ( long ) ( SUB_BUCKETS + index % SUB_BUCKETS ) << ( exponent - SUB_BUCKET_BITS );
+		return lower + ( 1L << ( exponent - SUB_BUCKET_BITS ) ) - 1;
+	}
+
+	public void record( long value ) {
+		if( value < 0 ) {
+			value = 0;
+		}
+		this.buckets.incrementAndGet( index( value ) );
+		this.count.increment();
+		this.sum.add( value );
+		this.max.accumulateAndGet( value, Math::max );
+	}
+
+	public long count() {
+		return this.count.sum();
+	}
+
+	public long max() {
+		return this.max.get();
+	}
+
+	public double mean() {
+		long count = this.count.sum();
+		return count >= 1 ? ( double ) this.sum.sum() / count : 0;
+	}
+
+	public long percentile( double percentile ) {
+		long count = this.count.sum();
+		if( count == 0 ) {
+			return 0;
+		}
+		long target = Math.max( 1, ( long ) Math.ceil( count * percentile / 100 ) );
+		long seen = 0;
+		for( int i = 0; i < this.buckets.length(); i++ ) {
+			seen += this.buckets.get( i );
+			if( seen >= target ) {
+				return Math.min( upper( i ), this.max.get() );
+			}
+		}
+		return this.max.get();
+	}
+
+	public long sum() {
+		return this.sum.sum();
+	}
+
+}
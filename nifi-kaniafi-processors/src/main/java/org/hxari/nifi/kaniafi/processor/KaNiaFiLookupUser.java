@@ -0,0 +1,163 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.hxari.nifi.kaniafi.service.KaNiaFiUserCache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+@Tags({ "cache", "enrich", "instagram", "kanashī", "kaniafi", "lookup", "user" })
+@CapabilityDescription( "Look up the latest User Object of the primary key in a FlowFile attribute from the User Cache populated by KaNiaFiExtractUser, and enrich the FlowFile with it as an attribute or as its content" )
+@SeeAlso({ KaNiaFiExtractUser.class })
+public class KaNiaFiLookupUser extends AbstractProcessor {
+
+	final public static PropertyDescriptor USER_CACHE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "user.cache" )
+        .displayName( "User Cache" )
+        .description( "User Cache service the User Objects are looked up from" )
+        .required( true )
+        .identifiesControllerService( KaNiaFiUserCache.class )
+        .build();
+
+	final public static PropertyDescriptor LOOKUP_ATTRIBUTE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "lookup.attribute" )
+        .displayName( "Lookup Attribute" )
+        .description( "FlowFile attribute holding the user primary key" )
+        .required( true )
+        .defaultValue( "user.pk" )
+        .addValidator( StandardValidators.NON_EMPTY_VALIDATOR )
+        .build();
+
+	final public static String DESTINATION_ATTRIBUTE = "Attribute";
+	final public static String DESTINATION_CONTENT = "Content";
+
+	final public static PropertyDescriptor DESTINATION_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "destination" )
+        .displayName( "Destination" )
+        .description( "If set to Attribute the User Object is written into the user.record attribute, if set to Content it replaces the FlowFile content" )
+        .required( true )
+        .allowableValues( DESTINATION_ATTRIBUTE, DESTINATION_CONTENT )
+        .defaultValue( DESTINATION_ATTRIBUTE )
+        .build();
+
+	final public static PropertyDescriptor BATCH_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "batch.size" )
+        .displayName( "Batch Size" )
+        .description( "Maximum number of FlowFiles looked up in a single session, the session is committed once for the whole batch" )
+        .required( true )
+        .defaultValue( "100" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+	final public static Relationship FAILURE_RELATIONSHIP = new Relationship.Builder()
+        .name( "failure" )
+        .description( "FlowFile without a numeric primary key in the Lookup Attribute will be passed to this relationship" )
+        .build();
+
+	final public static Relationship MATCHED_RELATIONSHIP = new Relationship.Builder()
+        .name( "matched" )
+        .description( "FlowFile whose user is cached will be passed to this relationship" )
+        .build();
+
+	final public static Relationship UNMATCHED_RELATIONSHIP = new Relationship.Builder()
+        .name( "unmatched" )
+        .description( "FlowFile whose user is not cached will be passed to this relationship unchanged" )
+        .build();
+
+	private List<PropertyDescriptor> descriptors;
+	private Set<Relationship> relationships;
+
+	@Override
+	protected void init( final ProcessorInitializationContext context ) {
+		
+		descriptors = new ArrayList<>();
+		descriptors.add( USER_CACHE_PROPERTY );
+		descriptors.add( LOOKUP_ATTRIBUTE_PROPERTY );
+		descriptors.add( DESTINATION_PROPERTY );
+		descriptors.add( BATCH_SIZE_PROPERTY );
+		descriptors = Collections.unmodifiableList( descriptors );
+		
+		relationships = new HashSet<>();
+		relationships.add( FAILURE_RELATIONSHIP );
+		relationships.add( MATCHED_RELATIONSHIP );
+		relationships.add( UNMATCHED_RELATIONSHIP );
+		relationships = Collections.unmodifiableSet( relationships );
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@Override
+	public void onTrigger( final ProcessContext context, final ProcessSession session ) {
+		List<FlowFile> flowFiles = session.get( context.getProperty( BATCH_SIZE_PROPERTY ).asInteger() );
+		if( flowFiles.isEmpty() ) {
+			return;
+		}
+		KaNiaFiUserCache cache = context.getProperty( USER_CACHE_PROPERTY ).asControllerService( KaNiaFiUserCache.class );
+		String attribute = context.getProperty( LOOKUP_ATTRIBUTE_PROPERTY ).getValue();
+		boolean content = context.getProperty( DESTINATION_PROPERTY ).getValue().equals( DESTINATION_CONTENT );
+		for( FlowFile flowFile : flowFiles ) {
+			long pk;
+			try {
+				pk = Long.parseLong( String.valueOf( flowFile.getAttribute( attribute ) ).trim() );
+			}
+			catch( NumberFormatException e ) {
+				getLogger().error( "No user primary key in attribute {} of {}", new Object[]{ attribute, flowFile } );
+				session.transfer( flowFile, FAILURE_RELATIONSHIP );
+				continue;
+			}
+			byte[] record = cache.get( pk );
+			if( record == null ) {
+				session.transfer( flowFile, UNMATCHED_RELATIONSHIP );
+				continue;
+			}
+			if( content ) {
+				flowFile = session.write( flowFile, out -> out.write( record ) );
+				flowFile = session.putAttribute( flowFile, CoreAttributes.MIME_TYPE.key(), "application/json" );
+			}
+			else {
+				flowFile = session.putAttribute( flowFile, "user.record", new String( record, StandardCharsets.UTF_8 ) );
+			}
+			session.transfer( flowFile, MATCHED_RELATIONSHIP );
+		}
+	}
+
+}
@@ -18,7 +18,8 @@ package org.hxari.nifi.kaniafi.processor;
 
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
@@ -27,30 +28,86 @@ import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.util.StandardValidators;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-@Tags({ "media", "instagram", "kanashī", "kaniafi", "request", "response"  })
-@CapabilityDescription( "ok" )
-@SeeAlso({})
+@Tags({ "media", "instagram", "kanashī", "kaniafi", "request", "response", "caption", "hashtag", "mention" })
+@CapabilityDescription( "Search every media caption object of the FlowFile content, such as the items of explore fill media, story and user feed responses, and extract the caption text along with its hashtags, mentions and URLs" )
+@SeeAlso({ KaNiaFiExtract.class, KaNiaFiExtractUser.class })
 public class KaNiaFiMediaCaption extends AbstractProcessor {
 
-    // public static final PropertyDescriptor MY_PROPERTY = new PropertyDescriptor.Builder()
-    //         .name( "MY_PROPERTY" )
-    //         .displayName( "My property" )
-    //         .description( "Example Property" )
-    //         .required( true )
-    //         .addValidator( StandardValidators.NON_EMPTY_VALIDATOR )
-    //         .build();
+    final public static PropertyDescriptor BATCH_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "batch.size" )
+        .displayName( "Batch Size" )
+        .description( "Maximum number of FlowFiles extracted in a single session, the session is committed once for the whole batch" )
+        .required( true )
+        .defaultValue( "10" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+    final public static String OUTPUT_FORMAT_NDJSON = "NDJSON";
+    final public static String OUTPUT_FORMAT_ATTRIBUTES = "Attributes";
+
+    final public static PropertyDescriptor OUTPUT_FORMAT_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "output.format" )
+        .displayName( "Output Format" )
+        .description( "If set to NDJSON, one caption object per line is written into a new FlowFile and the original is passed to original, if set to Attributes the distinct hashtags, mentions and URLs of the FlowFile are written as comma separated attributes on the original FlowFile" )
+        .required( true )
+        .allowableValues( OUTPUT_FORMAT_NDJSON, OUTPUT_FORMAT_ATTRIBUTES )
+        .defaultValue( OUTPUT_FORMAT_NDJSON )
+        .build();
+
+    final public static PropertyDescriptor CAPTION_TEXT_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "caption.text" )
+        .displayName( "Include Caption Text" )
+        .description( "Whether the caption text is written along with its tokens when the Output Format is NDJSON" )
+        .required( true )
+        .defaultValue( "true" )
+        .addValidator( StandardValidators.BOOLEAN_VALIDATOR )
+        .build();
+
+    final public static Relationship FAILURE_RELATIONSHIP = new Relationship.Builder()
+        .name( "failure" )
+        .description( "FlowFile whose contents can not be parsed will be passed to this relationship" )
+        .build();
 
-    // public static final Relationship MY_RELATIONSHIP = new Relationship.Builder()
-    //         .name( "MY_RELATIONSHIP" )
-    //         .description( "Example relationship" )
-    //         .build();
+    final public static Relationship NONE_RELATIONSHIP = new Relationship.Builder()
+        .name( "none" )
+        .description( "FlowFile without any caption will be passed to this relationship" )
+        .build();
+
+    final public static Relationship ORIGINAL_RELATIONSHIP = new Relationship.Builder()
+        .name( "original" )
+        .description( "Original flowfile will be passed to this relationship when the Output Format is NDJSON" )
+        .autoTerminateDefault( true )
+        .build();
+
+    final public static Relationship SUCCESS_RELATIONSHIP = new Relationship.Builder()
+        .name( "success" )
+        .description( "Captions will be passed to this relationship" )
+        .build();
+
+    /**
+     * Fields of a caption object copied into the output as strings, since
+     * the same ids are numbers in some responses and strings in others.
+     */
+    final private static String[] IDENTIFIERS = { "pk", "media_id", "user_id" };
 
     private List<PropertyDescriptor> descriptors;
     private Set<Relationship> relationships;
@@ -59,11 +116,16 @@ public class KaNiaFiMediaCaption extends AbstractProcessor {
     protected void init( final ProcessorInitializationContext context ) {
         
         descriptors = new ArrayList<>();
-        // descriptors.add(  );
+        descriptors.add( BATCH_SIZE_PROPERTY );
+        descriptors.add( OUTPUT_FORMAT_PROPERTY );
+        descriptors.add( CAPTION_TEXT_PROPERTY );
         descriptors = Collections.unmodifiableList( descriptors );
         
         relationships = new HashSet<>();
-        // relationships.add(  );
+        relationships.add( FAILURE_RELATIONSHIP );
+        relationships.add( NONE_RELATIONSHIP );
+        relationships.add( ORIGINAL_RELATIONSHIP );
+        relationships.add( SUCCESS_RELATIONSHIP );
         relationships = Collections.unmodifiableSet( relationships );
     }
 
@@ -77,19 +139,285 @@ public class KaNiaFiMediaCaption extends AbstractProcessor {
         return descriptors;
     }
 
-    @OnScheduled
-    public void onScheduled( final ProcessContext context ) {
-    }
-
     @Override
     public void onTrigger( final ProcessContext context, final ProcessSession session ) {
-        FlowFile flowFile = session.get();
-        if( flowFile == null ) {
-			try {
-			}
-			catch( Exception e ) {
-			}
+        List<FlowFile> flowFiles = session.get( context.getProperty( BATCH_SIZE_PROPERTY ).asInteger() );
+        if( flowFiles.isEmpty() ) {
+            return;
+        }
+        boolean ndjson = context.getProperty( OUTPUT_FORMAT_PROPERTY ).getValue().equals( OUTPUT_FORMAT_NDJSON );
+        Caption caption = new Caption( context.getProperty( CAPTION_TEXT_PROPERTY ).asBoolean() );
+        for( FlowFile flowFile : flowFiles ) {
+            process( session, flowFile, ndjson ? new NdjsonSink( session, flowFile, caption.textual ) : new AttributeSink( session ), caption );
+        }
+    }
+
+    private void process( final ProcessSession session, final FlowFile flowFile, final Sink sink, final Caption caption ) {
+        ComponentLog logger = getLogger();
+        try( InputStream flowFileInputStream = session.read( flowFile );
+            JsonParser parser = KaNiaFi.objectMapper.getFactory().createParser( flowFileInputStream ) ) {
+            while( caption.next( parser ) ) {
+                sink.accept( caption );
+            }
+        }
+        catch( IOException e ) {
+            sink.abort();
+            logger.error( "Failed to parse FlowFile contents {}", new Object[]{ flowFile, e } );
+            session.transfer( flowFile, FAILURE_RELATIONSHIP );
+            return;
+        }
+        if( sink.count() == 0 ) {
+            sink.abort();
+            session.transfer( flowFile, NONE_RELATIONSHIP );
+            return;
+        }
+        session.adjustCounter( "Captions", sink.count(), false );
+        session.adjustCounter( "Caption Hashtags", sink.tokens( KaNiaFiCaptionScanner.HASHTAG ), false );
+        session.adjustCounter( "Caption Mentions", sink.tokens( KaNiaFiCaptionScanner.MENTION ), false );
+        session.adjustCounter( "Caption URLs", sink.tokens( KaNiaFiCaptionScanner.URL ), false );
+        try {
+            sink.finish( flowFile );
         }
+        catch( IOException e ) {
+            sink.abort();
+            logger.error( "Failed to write captions {}", new Object[]{ flowFile, e } );
+            session.transfer( flowFile, FAILURE_RELATIONSHIP );
+        }
+    }
+
+    /**
+     * Reusable state of the caption being read, the text is copied into one
+     * growing buffer and the scanner reports its tokens as offset and length
+     * triples into that buffer.
+     */
+    static final class Caption implements KaNiaFiCaptionScanner.Listener {
+
+        final String[] identifiers = new String[IDENTIFIERS.length];
+        int length;
+        int size;
+        char[] text = new char[256];
+        final boolean textual;
+        int[] tokens = new int[48];
+
+        Caption( boolean textual ) {
+            this.textual = textual;
+        }
+
+        /**
+         * Moves the parser past the next caption object that has a text and
+         * reads it, false once the content has no more captions.
+         */
+        boolean next( JsonParser parser ) throws IOException {
+            JsonToken token;
+            while( ( token = parser.nextToken() ) != null ) {
+                if( token == JsonToken.START_OBJECT && "caption".equals( parser.getCurrentName() ) && this.read( parser ) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Reads the caption object the parser is positioned on, true when it
+         * had a text field.
+         */
+        private boolean read( JsonParser parser ) throws IOException {
+            boolean found = false;
+            Arrays.fill( this.identifiers, null );
+            this.length = 0;
+            this.size = 0;
+            JsonToken token;
+            while( ( token = parser.nextToken() ) != JsonToken.END_OBJECT ) {
+                String name = parser.getCurrentName();
+                token = parser.nextToken();
+                if( token.isStructStart() ) {
+                    parser.skipChildren();
+                }
+                else if( token == JsonToken.VALUE_STRING && name.equals( "text" ) ) {
+                    this.length = parser.getTextLength();
+                    if( this.length > this.text.length ) {
+                        this.text = new char[Math.max( this.length, this.text.length * 2 )];
+                    }
+                    System.arraycopy( parser.getTextCharacters(), parser.getTextOffset(), this.text, 0, this.length );
+                    found = true;
+                }
+                else if( token.isScalarValue() && token != JsonToken.VALUE_NULL ) {
+                    for( int i = 0; i < IDENTIFIERS.length; i++ ) {
+                        if( IDENTIFIERS[i].equals( name ) ) {
+                            this.identifiers[i] = parser.getText();
+                        }
+                    }
+                }
+            }
+            if( found ) {
+                KaNiaFiCaptionScanner.scan( this.text, 0, this.length, this );
+            }
+            return found;
+        }
+
+        @Override
+        public void token( int kind, char[] text, int offset, int length ) {
+            if( this.size + 3 > this.tokens.length ) {
+                this.tokens = Arrays.copyOf( this.tokens, this.tokens.length * 2 );
+            }
+            this.tokens[this.size++] = kind;
+            this.tokens[this.size++] = offset;
+            this.tokens[this.size++] = length;
+        }
+
+    }
+
+    private interface Sink {
+        void accept( Caption caption ) throws IOException;
+        void abort();
+        int count();
+        void finish( FlowFile original ) throws IOException;
+        int tokens( int kind );
+    }
+
+    /**
+     * Collects the distinct tokens of every caption and puts them on the
+     * original FlowFile.
+     */
+    private static final class AttributeSink implements Sink {
+
+        private int count;
+        private final int[] counts = new int[3];
+        private final ProcessSession session;
+        private final List<Set<String>> tokens = Arrays.asList( new LinkedHashSet<>(), new LinkedHashSet<>(), new LinkedHashSet<>() );
+
+        private AttributeSink( ProcessSession session ) {
+            this.session = session;
+        }
+
+        @Override
+        public void accept( Caption caption ) {
+            for( int i = 0; i < caption.size; i += 3 ) {
+                this.counts[caption.tokens[i]]++;
+                this.tokens.get( caption.tokens[i] ).add( new String( caption.text, caption.tokens[i + 1], caption.tokens[i + 2] ) );
+            }
+            this.count++;
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public int count() {
+            return this.count;
+        }
+
+        @Override
+        public void finish( FlowFile original ) {
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put( "caption.count", String.valueOf( this.count ) );
+            attributes.put( "caption.hashtags", String.join( ",", this.tokens.get( KaNiaFiCaptionScanner.HASHTAG ) ) );
+            attributes.put( "caption.mentions", String.join( ",", this.tokens.get( KaNiaFiCaptionScanner.MENTION ) ) );
+            attributes.put( "caption.urls", String.join( ",", this.tokens.get( KaNiaFiCaptionScanner.URL ) ) );
+            this.session.transfer( this.session.putAllAttributes( original, attributes ), SUCCESS_RELATIONSHIP );
+        }
+
+        @Override
+        public int tokens( int kind ) {
+            return this.counts[kind];
+        }
+
+    }
+
+    /**
+     * Writes one caption object per line through a JsonGenerator straight
+     * into a child of the original FlowFile.
+     */
+    private static final class NdjsonSink implements Sink {
+
+        private static final String[] FIELDS = { "hashtags", "mentions", "urls" };
+
+        private FlowFile child;
+        private int count;
+        private final int[] counts = new int[3];
+        private JsonGenerator generator;
+        private final FlowFile parent;
+        private final ProcessSession session;
+        private final boolean textual;
+
+        private NdjsonSink( ProcessSession session, FlowFile parent, boolean textual ) {
+            this.parent = parent;
+            this.session = session;
+            this.textual = textual;
+        }
+
+        @Override
+        public void accept( Caption caption ) throws IOException {
+            if( this.generator == null ) {
+                this.child = this.session.create( this.parent );
+                this.generator = KaNiaFi.objectMapper.getFactory().createGenerator( this.session.write( this.child ), JsonEncoding.UTF8 );
+                this.generator.setRootValueSeparator( null );
+            }
+            JsonGenerator generator = this.generator;
+            generator.writeStartObject();
+            for( int i = 0; i < IDENTIFIERS.length; i++ ) {
+                if( caption.identifiers[i] != null ) {
+                    generator.writeStringField( IDENTIFIERS[i], caption.identifiers[i] );
+                }
+            }
+            if( this.textual ) {
+                generator.writeFieldName( "text" );
+                generator.writeString( caption.text, 0, caption.length );
+            }
+            for( int kind = 0; kind < FIELDS.length; kind++ ) {
+                generator.writeArrayFieldStart( FIELDS[kind] );
+                for( int i = 0; i < caption.size; i += 3 ) {
+                    if( caption.tokens[i] == kind ) {
+                        generator.writeString( caption.text, caption.tokens[i + 1], caption.tokens[i + 2] );
+                        this.counts[kind]++;
+                    }
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+            generator.writeRaw( '\n' );
+            this.count++;
+        }
+
+        @Override
+        public void abort() {
+            if( this.generator != null ) {
+                try {
+                    this.generator.close();
+                }
+                catch( IOException e ) {
+                }
+                this.generator = null;
+            }
+            if( this.child != null ) {
+                this.session.remove( this.child );
+                this.child = null;
+            }
+        }
+
+        @Override
+        public int count() {
+            return this.count;
+        }
+
+        @Override
+        public void finish( FlowFile original ) throws IOException {
+            this.generator.close();
+            this.generator = null;
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put( CoreAttributes.MIME_TYPE.key(), "application/x-ndjson" );
+            attributes.put( "record.count", String.valueOf( this.count ) );
+            this.session.transfer( this.session.putAllAttributes( this.child, attributes ), SUCCESS_RELATIONSHIP );
+            this.child = null;
+            this.session.transfer( original, ORIGINAL_RELATIONSHIP );
+        }
+
+        @Override
+        public int tokens( int kind ) {
+            return this.counts[kind];
+        }
+
     }
 
 }
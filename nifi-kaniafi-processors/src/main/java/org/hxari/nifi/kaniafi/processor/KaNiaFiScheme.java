@@ -0,0 +1,116 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.hxari.nifi.kaniafi.scheme.KaNiaFiCompiledScheme;
+import org.hxari.nifi.kaniafi.service.KaNiaFiSchemaRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable copy of a scheme source prepared for routing, a
+ * {@link KaNiaFiCompiledScheme} together with the classifier of its entries.
+ *
+ * A scheme compiled from the source itself validates with the pooled
+ * Validators of the compiled version. A scheme shared from a
+ * {@link KaNiaFiSchemaRegistry} service only reads its entries for the
+ * classifier, nothing is registered and every validation is left to the
+ * service which addresses the entry by name and digest.
+ */
+public final class KaNiaFiScheme {
+
+	public static final class Entry extends KaNiaFiCompiledScheme.Entry {
+
+		private final KaNiaFiType type;
+
+		private Entry( KaNiaFiCompiledScheme.Entry entry ) {
+			super( entry );
+			this.type = KaNiaFiType.of( entry.name() );
+		}
+
+		public KaNiaFiType type() {
+			return this.type;
+		}
+
+	}
+
+	private final KaNiaFiClassifier classifier;
+	private final KaNiaFiCompiledScheme compiled;
+	private final List<Entry> entries;
+	private final KaNiaFiSchemaRegistry service;
+
+	private KaNiaFiScheme( KaNiaFiCompiledScheme compiled, KaNiaFiSchemaRegistry service ) {
+		List<Entry> entries = new ArrayList<>( compiled.entries().size() );
+		for( KaNiaFiCompiledScheme.Entry entry : compiled.entries() ) {
+			entries.add( new Entry( entry ) );
+		}
+		this.compiled = compiled;
+		this.entries = Collections.unmodifiableList( entries );
+		this.classifier = new KaNiaFiClassifier( this.entries );
+		this.service = service;
+	}
+
+	public static KaNiaFiScheme compile( byte[] source, long version ) throws IOException {
+		return new KaNiaFiScheme( KaNiaFiCompiledScheme.compile( source, version ), null );
+	}
+
+	public static KaNiaFiScheme compile( byte[] source, long version, KaNiaFiSchemaRegistry service ) throws IOException {
+		return new KaNiaFiScheme( KaNiaFiCompiledScheme.parse( source, version ), service );
+	}
+
+	public KaNiaFiClassifier classifier() {
+		return this.classifier;
+	}
+
+	public String digest() {
+		return this.compiled.digest();
+	}
+
+	public List<Entry> entries() {
+		return this.entries;
+	}
+
+	public List<String> invalid() {
+		return this.compiled.invalid();
+	}
+
+	/**
+	 * Whether node is valid against entry. An entry the service no longer
+	 * knows, after several changes of its source in a row, is not valid.
+	 */
+	public boolean validate( Entry entry, JsonNode node ) {
+		if( this.service != null ) {
+			try {
+				return this.service.validate( entry.name(), entry.digest(), KaNiaFi.objectMapper.writeValueAsString( node ) );
+			}
+			catch( IOException e ) {
+				return false;
+			}
+		}
+		return this.compiled.validate( entry, node );
+	}
+
+	public long version() {
+		return this.compiled.version();
+	}
+
+}
@@ -0,0 +1,149 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.hxari.nifi.kaniafi.scheme.KaNiaFiCompiledScheme;
+import org.hxari.nifi.kaniafi.service.KaNiaFiSchemaRegistry;
+import org.hxari.nifi.kaniafi.service.KaNiaFiSchemaSnapshot;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current {@link KaNiaFiScheme} of a scheme source file.
+ *
+ * The source is compiled once, then its modification time and size are
+ * checked at most once per reload interval. A new version is compiled and
+ * swapped in only when the content digest actually changes, so a steady
+ * state caller never touches the file.
+ *
+ * Backed by a {@link KaNiaFiSchemaRegistry} service, the service owns the
+ * source and its reloads, and the scheme is compiled again for routing only
+ * when the digest of the service changes.
+ */
+public class KaNiaFiSchemeHolder {
+
+	private final AtomicReference<KaNiaFiScheme> current = new AtomicReference<>();
+	private final AtomicLong deadline = new AtomicLong();
+	private final long interval;
+	private final ComponentLog logger;
+	private final KaNiaFiSchemaRegistry service;
+	private final Path source;
+
+	private volatile long modified = -1;
+	private volatile long size = -1;
+
+	public KaNiaFiSchemeHolder( String source, long interval, ComponentLog logger ) {
+		this.source = source != null ? Paths.get( source ) : null;
+		this.interval = interval;
+		this.logger = logger;
+		this.service = null;
+	}
+
+	public KaNiaFiSchemeHolder( KaNiaFiSchemaRegistry service, ComponentLog logger ) {
+		this.source = Paths.get( service.getSource() );
+		this.interval = -1;
+		this.logger = logger;
+		this.service = service;
+	}
+
+	public KaNiaFiScheme get() throws IOException {
+		KaNiaFiScheme scheme = this.current.get();
+		if( this.service != null ) {
+			return scheme != null && scheme.digest().equals( this.service.getDigest() ) ? scheme : this.share();
+		}
+		if( scheme == null ) {
+			return this.load();
+		}
+		if( this.interval >= 0 ) {
+			long now = System.nanoTime();
+			long next = this.deadline.get();
+			if( now - next >= 0 && this.deadline.compareAndSet( next, now + this.interval ) ) {
+				try {
+					this.refresh();
+				}
+				catch( IOException e ) {
+					this.logger.warn( "Failed to reload Scheme {}, keeping version {}", new Object[]{ this.source, scheme.version(), e } );
+				}
+			}
+		}
+		return this.current.get();
+	}
+
+	public Path source() {
+		return this.source;
+	}
+
+	private synchronized KaNiaFiScheme load() throws IOException {
+		KaNiaFiScheme scheme = this.current.get();
+		if( scheme == null ) {
+			this.refresh();
+			this.deadline.set( System.nanoTime() + this.interval );
+			scheme = this.current.get();
+		}
+		return scheme;
+	}
+
+	private synchronized KaNiaFiScheme share() throws IOException {
+		KaNiaFiScheme scheme = this.current.get();
+		KaNiaFiSchemaSnapshot snapshot = this.service.getSnapshot();
+		if( scheme == null || !scheme.digest().equals( snapshot.getDigest() ) ) {
+			scheme = KaNiaFiScheme.compile( snapshot.getScheme(), snapshot.getVersion(), this.service );
+			this.current.set( scheme );
+		}
+		return scheme;
+	}
+
+	private synchronized void refresh() throws IOException {
+		if( this.source == null ) {
+			throw new FileNotFoundException( "Scheme source is not specified" );
+		}
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes( this.source, BasicFileAttributes.class );
+		}
+		catch( NoSuchFileException e ) {
+			throw new FileNotFoundException( this.source.toString() );
+		}
+		long modified = attributes.lastModifiedTime().toMillis();
+		long size = attributes.size();
+		KaNiaFiScheme scheme = this.current.get();
+		if( scheme != null && modified == this.modified && size == this.size ) {
+			return;
+		}
+		byte[] source = Files.readAllBytes( this.source );
+		if( scheme == null || !scheme.digest().equals( KaNiaFiCompiledScheme.digest( source ) ) ) {
+			KaNiaFiScheme compiled = KaNiaFiScheme.compile( source, scheme != null ? scheme.version() + 1 : 1 );
+			this.current.set( compiled );
+			this.logger.info( "Compiled Scheme {} version {} with {} entries", new Object[]{ this.source, compiled.version(), compiled.entries().size() } );
+			if( compiled.invalid().size() >= 1 ) {
+				this.logger.warn( "Skipped invalid Scheme entries {} in {}", new Object[]{ compiled.invalid(), this.source } );
+			}
+		}
+		this.modified = modified;
+		this.size = size;
+	}
+
+}
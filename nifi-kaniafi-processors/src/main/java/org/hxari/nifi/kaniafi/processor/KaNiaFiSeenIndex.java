@@ -0,0 +1,282 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Persistent set of seen 64-bit ids.
+ *
+ * Every id is appended to seen.log and inserted into seen.table, a memory
+ * mapped open addressing table of longs sized for the capacity, so a
+ * lookup is a few probes into the page cache. The table header records how
+ * many ids of the log it covers, on open only the ids appended after that
+ * are replayed, and the table is rebuilt from the log only when its layout
+ * no longer matches the capacity. Once the capacity is reached the log is
+ * compacted to the newest half of the ids and the table refilled from it.
+ *
+ * Ids are claimed before they are committed, a claimed id reads as seen
+ * for every other caller until it is committed or released.
+ */
+public final class KaNiaFiSeenIndex implements Closeable {
+
+	private static final int MAGIC = 0x4b4e4653;
+	private static final int HEADER = 64;
+	private static final int MAX_SLOTS = 1 << 27;
+
+	private final int capacity;
+	private long count;
+	private final Path directory;
+	private final FileLock lock;
+	private FileChannel log;
+	private long logged;
+	private final int mask;
+	private final Set<Long> pending = new HashSet<>();
+	private final MappedByteBuffer table;
+	private final FileChannel tableChannel;
+	private boolean zero;
+
+	public KaNiaFiSeenIndex( Path directory, int capacity ) throws IOException {
+		int slots = Integer.highestOneBit( Math.max( 16, ( int ) Math.min( MAX_SLOTS, capacity * 4L / 3 + 1 ) ) - 1 ) << 1;
+		this.capacity = Math.max( 2, Math.min( capacity, slots / 4 * 3 ) );
+		this.directory = directory;
+		this.mask = slots - 1;
+		Files.createDirectories( directory );
+		Path tablePath = directory.resolve( "seen.table" );
+		long tableSize = HEADER + ( long ) slots * 8;
+		boolean reuse = Files.exists( tablePath ) && Files.size( tablePath ) == tableSize;
+		this.tableChannel = FileChannel.open( tablePath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		this.lock = lock( this.tableChannel );
+		if( this.lock == null ) {
+			this.tableChannel.close();
+			throw new IOException( "Seen index " + directory + " is already in use" );
+		}
+		if( reuse == false ) {
+			this.tableChannel.truncate( 0 );
+		}
+		this.table = this.tableChannel.map( FileChannel.MapMode.READ_WRITE, 0, tableSize );
+		this.log = FileChannel.open( directory.resolve( "seen.log" ), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		long entries = this.log.size() / 8;
+		if( this.log.size() % 8 != 0 ) {
+			this.log.truncate( entries * 8 );
+		}
+		if( reuse && this.table.getInt( 0 ) == MAGIC && this.table.getInt( 4 ) == slots && this.table.getLong( 16 ) <= entries ) {
+			this.count = this.table.getLong( 8 );
+			this.logged = this.table.getLong( 16 );
+			this.zero = this.table.getInt( 24 ) != 0;
+		}
+		else {
+			this.table.putInt( 0, MAGIC );
+			this.table.putInt( 4, slots );
+			this.clear( reuse );
+		}
+		this.replay();
+		if( this.count >= this.capacity ) {
+			this.compact();
+		}
+	}
+
+	/**
+	 * Marks id as pending, false when it is already seen or pending.
+	 */
+	public synchronized boolean claim( long id ) {
+		return this.contains( id ) == false && this.pending.add( id );
+	}
+
+	private void clear( boolean dirty ) {
+		this.count = 0;
+		this.logged = 0;
+		this.zero = false;
+		this.header();
+		if( dirty ) {
+			for( long slot = 0; slot <= this.mask; slot++ ) {
+				this.table.putLong( ( int ) ( HEADER + slot * 8 ), 0 );
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		this.force();
+		this.lock.release();
+		this.log.close();
+		this.tableChannel.close();
+	}
+
+	/**
+	 * Appends the pending ids to the log and inserts them into the table.
+	 */
+	public synchronized void commit( long[] ids, int length ) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate( length * 8 );
+		for( int i = 0; i < length; i++ ) {
+			buffer.putLong( ids[i] );
+		}
+		buffer.flip();
+		long position = this.logged * 8;
+		while( buffer.hasRemaining() ) {
+			position += this.log.write( buffer, position );
+		}
+		for( int i = 0; i < length; i++ ) {
+			this.pending.remove( ids[i] );
+			this.insert( ids[i] );
+			this.logged++;
+		}
+		this.header();
+		if( this.count >= this.capacity ) {
+			this.compact();
+		}
+	}
+
+	/**
+	 * Rewrites the log with the newest half of the ids and refills the
+	 * table from it, the table header is reset first so a crash in between
+	 * replays the whole log on the next open.
+	 */
+	private void compact() throws IOException {
+		long keep = Math.min( this.logged, this.capacity / 2 );
+		Path compacted = this.directory.resolve( "seen.log.compact" );
+		try( FileChannel out = FileChannel.open( compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE ) ) {
+			long position = ( this.logged - keep ) * 8;
+			long end = this.logged * 8;
+			while( position < end ) {
+				position += this.log.transferTo( position, end - position, out );
+			}
+			out.force( true );
+		}
+		this.clear( true );
+		this.log.close();
+		Files.move( compacted, this.directory.resolve( "seen.log" ), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		this.log = FileChannel.open( this.directory.resolve( "seen.log" ), StandardOpenOption.READ, StandardOpenOption.WRITE );
+		this.replay();
+	}
+
+	public synchronized boolean contains( long id ) {
+		if( id == 0 ) {
+			return this.zero;
+		}
+		int slot = hash( id ) & this.mask;
+		long key;
+		while( ( key = this.table.getLong( HEADER + slot * 8 ) ) != 0 ) {
+			if( key == id ) {
+				return true;
+			}
+			slot = ( slot + 1 ) & this.mask;
+		}
+		return this.pending.contains( id );
+	}
+
+	public synchronized long count() {
+		return this.count;
+	}
+
+	public synchronized void force() throws IOException {
+		this.header();
+		this.table.force();
+		this.log.force( false );
+	}
+
+	private static int hash( long id ) {
+		id ^= id >>> 33;
+		id *= 0xff51afd7ed558ccdL;
+		id ^= id >>> 33;
+		return ( int ) id;
+	}
+
+	private void header() {
+		this.table.putLong( 8, this.count );
+		this.table.putLong( 16, this.logged );
+		this.table.putInt( 24, this.zero ? 1 : 0 );
+	}
+
+	private void insert( long id ) {
+		if( id == 0 ) {
+			if( this.zero == false ) {
+				this.zero = true;
+				this.count++;
+			}
+			return;
+		}
+		int slot = hash( id ) & this.mask;
+		long key;
+		while( ( key = this.table.getLong( HEADER + slot * 8 ) ) != 0 ) {
+			if( key == id ) {
+				return;
+			}
+			slot = ( slot + 1 ) & this.mask;
+		}
+		this.table.putLong( HEADER + slot * 8, id );
+		this.count++;
+	}
+
+	/**
+	 * Locks the file against other processes, and returns null as well when
+	 * it is already locked by another index of this JVM.
+	 */
+	private static FileLock lock( FileChannel channel ) throws IOException {
+		try {
+			return channel.tryLock();
+		}
+		catch( OverlappingFileLockException e ) {
+			return null;
+		}
+	}
+
+	public synchronized void release( long[] ids, int length ) {
+		for( int i = 0; i < length; i++ ) {
+			this.pending.remove( ids[i] );
+		}
+	}
+
+	/**
+	 * Inserts the ids appended to the log after the ones the table covers.
+	 */
+	private void replay() throws IOException {
+		long entries = this.log.size() / 8;
+		ByteBuffer buffer = ByteBuffer.allocate( 8 << 12 );
+		long position = this.logged * 8;
+		while( this.logged < entries ) {
+			buffer.clear();
+			buffer.limit( ( int ) Math.min( buffer.capacity(), entries * 8 - position ) );
+			while( buffer.hasRemaining() ) {
+				int read = this.log.read( buffer, position + buffer.position() );
+				if( read < 0 ) {
+					throw new IOException( "Seen log ended before " + entries + " ids" );
+				}
+			}
+			buffer.flip();
+			position += buffer.limit();
+			while( buffer.hasRemaining() ) {
+				this.insert( buffer.getLong() );
+				this.logged++;
+			}
+		}
+		this.header();
+	}
+
+}
@@ -0,0 +1,210 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Count-min sketch of case-insensitive tokens with a min-heap of the size
+ * heaviest ones.
+ *
+ * Memory is fixed at depth x width counters plus size heap items whatever
+ * the number of distinct tokens. Counters take conservative updates, and a
+ * token String is only created once its estimate can enter the heap.
+ * Counts are doubles so the whole sketch can be decayed between windows.
+ */
+public final class KaNiaFiSketch {
+
+	public static final class Item {
+
+		private double count;
+		private int index;
+		private final String key;
+
+		private Item( String key, double count ) {
+			this.count = count;
+			this.key = key;
+		}
+
+		public double count() {
+			return this.count;
+		}
+
+		public String key() {
+			return this.key;
+		}
+
+	}
+
+	private final double[] counters;
+	private final int depth;
+	private final Item[] heap;
+	private final Map<String, Item> items;
+	private final int[] rows;
+	private int size;
+	private final int width;
+
+	public KaNiaFiSketch( int depth, int width, int size ) {
+		this.counters = new double[depth * width];
+		this.depth = depth;
+		this.heap = new Item[size];
+		this.items = new HashMap<>( size * 2 );
+		this.rows = new int[depth];
+		this.width = width;
+	}
+
+	/**
+	 * Counts one occurrence of text[offset, offset + length) and returns its
+	 * estimated count.
+	 */
+	public double add( char[] text, int offset, int length ) {
+		this.index( text, offset, length );
+		double estimate = Double.MAX_VALUE;
+		for( int row = 0; row < this.depth; row++ ) {
+			estimate = Math.min( estimate, this.counters[this.rows[row]] );
+		}
+		estimate += 1;
+		for( int row = 0; row < this.depth; row++ ) {
+			this.counters[this.rows[row]] = Math.max( this.counters[this.rows[row]], estimate );
+		}
+		if( this.size == this.heap.length && estimate <= this.heap[0].count ) {
+			return estimate;
+		}
+		this.offer( new String( text, offset, length ).toLowerCase( Locale.ROOT ), estimate );
+		return estimate;
+	}
+
+	/**
+	 * Multiplies every counter and heap count by factor, the heap order is
+	 * kept since all counts are scaled alike.
+	 */
+	public void decay( double factor ) {
+		for( int i = 0; i < this.counters.length; i++ ) {
+			this.counters[i] *= factor;
+		}
+		for( int i = 0; i < this.size; i++ ) {
+			this.heap[i].count *= factor;
+		}
+	}
+
+	private void down( int index ) {
+		while( true ) {
+			int left = index * 2 + 1;
+			if( left >= this.size ) {
+				break;
+			}
+			int child = left + 1 < this.size && this.heap[left + 1].count < this.heap[left].count ? left + 1 : left;
+			if( this.heap[index].count <= this.heap[child].count ) {
+				break;
+			}
+			this.swap( index, child );
+			index = child;
+		}
+	}
+
+	/**
+	 * Fills rows with the counter of text[offset, offset + length) in every
+	 * row of the sketch.
+	 */
+	private void index( char[] text, int offset, int length ) {
+		long first = 0xcbf29ce484222325L;
+		long second = 0x84222325cbf29ce4L;
+		for( int i = offset; i < offset + length; i++ ) {
+			char c = Character.toLowerCase( text[i] );
+			first = ( first ^ c ) * 0x100000001b3L;
+			second = ( second + c ) * 0x9e3779b97f4a7c15L;
+		}
+		second = ( second ^ ( second >>> 31 ) ) | 1;
+		for( int row = 0; row < this.depth; row++ ) {
+			long hash = first + row * second;
+			this.rows[row] = row * this.width + ( int ) ( ( hash ^ ( hash >>> 32 ) ) & 0x7fffffffL ) % this.width;
+		}
+	}
+
+	private void offer( String key, double count ) {
+		Item item = this.items.get( key );
+		if( item != null ) {
+			item.count = Math.max( item.count, count );
+			this.down( item.index );
+		}
+		else if( this.size < this.heap.length ) {
+			item = new Item( key, count );
+			this.items.put( key, item );
+			this.heap[this.size] = item;
+			item.index = this.size++;
+			this.up( item.index );
+		}
+		else if( count > this.heap[0].count ) {
+			this.items.remove( this.heap[0].key );
+			item = new Item( key, count );
+			this.items.put( key, item );
+			this.heap[0] = item;
+			this.down( 0 );
+		}
+	}
+
+	/**
+	 * Seeds the sketch with a count kept from an earlier run, the counters
+	 * are set directly so counts below one are restored as they were.
+	 */
+	public void restore( String key, double count ) {
+		char[] text = key.toCharArray();
+		this.index( text, 0, text.length );
+		for( int row = 0; row < this.depth; row++ ) {
+			this.counters[this.rows[row]] = Math.max( this.counters[this.rows[row]], count );
+		}
+		this.offer( key.toLowerCase( Locale.ROOT ), count );
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private void swap( int i, int j ) {
+		Item item = this.heap[i];
+		this.heap[i] = this.heap[j];
+		this.heap[j] = item;
+		this.heap[i].index = i;
+		this.heap[j].index = j;
+	}
+
+	/**
+	 * Heap items from the heaviest to the lightest.
+	 */
+	public List<Item> top() {
+		Item[] items = Arrays.copyOf( this.heap, this.size );
+		Arrays.sort( items, ( a, b ) -> Double.compare( b.count, a.count ) );
+		return new ArrayList<>( Arrays.asList( items ) );
+	}
+
+	private void up( int index ) {
+		while( index > 0 ) {
+			int parent = ( index - 1 ) >>> 1;
+			if( this.heap[parent].count <= this.heap[index].count ) {
+				break;
+			}
+			this.swap( parent, index );
+			index = parent;
+		}
+	}
+
+}
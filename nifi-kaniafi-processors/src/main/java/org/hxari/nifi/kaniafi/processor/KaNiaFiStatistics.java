@@ -0,0 +1,108 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per {@link KaNiaFiType} throughput and latency of a processor since it was
+ * scheduled, FlowFiles and bytes, parse and validation time and the number of
+ * schemes validated before the FlowFile was classified.
+ */
+public final class KaNiaFiStatistics {
+
+	public static final class Statistic {
+
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder candidates = new LongAdder();
+		private final KaNiaFiHistogram parse = new KaNiaFiHistogram();
+		private final KaNiaFiHistogram validation = new KaNiaFiHistogram();
+
+		public long bytes() {
+			return this.bytes.sum();
+		}
+
+		public long candidates() {
+			return this.candidates.sum();
+		}
+
+		public long count() {
+			return this.parse.count();
+		}
+
+		public KaNiaFiHistogram parse() {
+			return this.parse;
+		}
+
+		public KaNiaFiHistogram validation() {
+			return this.validation;
+		}
+
+	}
+
+	private final Map<KaNiaFiType, Statistic> statistics = new EnumMap<>( KaNiaFiType.class );
+
+	public KaNiaFiStatistics() {
+		for( KaNiaFiType type : KaNiaFiType.values() ) {
+			this.statistics.put( type, new Statistic() );
+		}
+	}
+
+	public Statistic get( KaNiaFiType type ) {
+		return this.statistics.get( type );
+	}
+
+	public void record( KaNiaFiType type, long bytes, long parseNanos, long validationNanos, int candidates ) {
+		Statistic statistic = this.statistics.get( type );
+		statistic.bytes.add( bytes );
+		statistic.candidates.add( candidates );
+		statistic.parse.record( parseNanos );
+		statistic.validation.record( validationNanos );
+	}
+
+	public String summary() {
+		StringBuilder builder = new StringBuilder();
+		for( Map.Entry<KaNiaFiType, Statistic> entry : this.statistics.entrySet() ) {
+			Statistic statistic = entry.getValue();
+			long count = statistic.count();
+			if( count == 0 ) {
+				continue;
+			}
+			if( builder.length() >= 1 ) {
+				builder.append( "; " );
+			}
+			builder.append( entry.getKey().value() )
+				.append( " count=" ).append( count )
+				.append( " bytes=" ).append( statistic.bytes() )
+				.append( " candidates=" ).append( String.format( "%.2f", ( double ) statistic.candidates() / count ) )
+				.append( " parse.p50=" ).append( micros( statistic.parse.percentile( 50 ) ) )
+				.append( " parse.p99=" ).append( micros( statistic.parse.percentile( 99 ) ) )
+				.append( " validation.p50=" ).append( micros( statistic.validation.percentile( 50 ) ) )
+				.append( " validation.p99=" ).append( micros( statistic.validation.percentile( 99 ) ) )
+				.append( " validation.max=" ).append( micros( statistic.validation.max() ) );
+		}
+		return builder.toString();
+	}
+
+	private static String micros( long nanos ) {
+		return TimeUnit.NANOSECONDS.toMicros( nanos ) + "us";
+	}
+
+}
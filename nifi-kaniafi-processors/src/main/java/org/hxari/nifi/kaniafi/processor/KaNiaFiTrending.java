@@ -0,0 +1,375 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+@Tags({ "media", "instagram", "kanashī", "kaniafi", "caption", "hashtag", "mention", "trending" })
+@CapabilityDescription( "Count the hashtags and mentions of every media caption in a fixed size Count-Min Sketch and emit the top trending ones as one summary FlowFile per window, the counts of earlier windows are decayed instead of dropped" )
+@SeeAlso({ KaNiaFiMediaCaption.class })
+@Stateful( scopes = Scope.LOCAL, description = "The start of the current window and the top hashtags and mentions are stored after every summary and when the processor is stopped, and seed the sketches again when the processor is restarted" )
+@TriggerSerially
+@TriggerWhenEmpty
+public class KaNiaFiTrending extends AbstractProcessor {
+
+	final public static PropertyDescriptor BATCH_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "batch.size" )
+        .displayName( "Batch Size" )
+        .description( "Maximum number of FlowFiles counted in a single session, the session is committed once for the whole batch" )
+        .required( true )
+        .defaultValue( "10" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+	final public static PropertyDescriptor TRENDING_WINDOW_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "trending.window" )
+        .displayName( "Trending Window" )
+        .description( "How often the summary FlowFile is emitted, the counts are decayed after every summary" )
+        .required( true )
+        .defaultValue( "5 min" )
+        .addValidator( StandardValidators.TIME_PERIOD_VALIDATOR )
+        .build();
+
+	final public static PropertyDescriptor TRENDING_DECAY_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "trending.decay" )
+        .displayName( "Trending Decay" )
+        .description( "Factor between 0 and 1 the counts are multiplied by at the end of every window, 0 only counts the current window and 1 never forgets" )
+        .required( true )
+        .defaultValue( "0.5" )
+        .addValidator( ( subject, input, context ) -> {
+            boolean valid;
+            try {
+                double decay = Double.parseDouble( input );
+                valid = decay >= 0 && decay <= 1;
+            }
+            catch( NumberFormatException e ) {
+                valid = false;
+            }
+            return new ValidationResult.Builder().subject( subject ).input( input ).valid( valid ).explanation( "must be a number between 0 and 1" ).build();
+        })
+        .build();
+
+	final public static PropertyDescriptor TRENDING_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "trending.size" )
+        .displayName( "Trending Size" )
+        .description( "Number of hashtags and of mentions kept and written in every summary" )
+        .required( true )
+        .defaultValue( "50" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+	final public static PropertyDescriptor SKETCH_WIDTH_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "sketch.width" )
+        .displayName( "Sketch Width" )
+        .description( "Counters per row of the Count-Min Sketch, wider sketches overestimate less" )
+        .required( true )
+        .defaultValue( "4096" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+	final public static PropertyDescriptor SKETCH_DEPTH_PROPERTY = new PropertyDescriptor.Builder()
+        .name( "sketch.depth" )
+        .displayName( "Sketch Depth" )
+        .description( "Rows of the Count-Min Sketch, each sketch holds Sketch Depth x Sketch Width counters of 8 bytes" )
+        .required( true )
+        .defaultValue( "4" )
+        .addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+        .build();
+
+	final public static Relationship FAILURE_RELATIONSHIP = new Relationship.Builder()
+        .name( "failure" )
+        .description( "FlowFile whose contents can not be parsed will be passed to this relationship, captions read before the error are still counted" )
+        .build();
+
+	final public static Relationship ORIGINAL_RELATIONSHIP = new Relationship.Builder()
+        .name( "original" )
+        .description( "Counted flowfile will be passed to this relationship" )
+        .autoTerminateDefault( true )
+        .build();
+
+	final public static Relationship SUMMARY_RELATIONSHIP = new Relationship.Builder()
+        .name( "summary" )
+        .description( "Summary of the top hashtags and mentions will be passed to this relationship once per window" )
+        .build();
+
+	private List<PropertyDescriptor> descriptors;
+	private Set<Relationship> relationships;
+
+	private volatile Window window;
+
+	@Override
+	protected void init( final ProcessorInitializationContext context ) {
+		
+		descriptors = new ArrayList<>();
+		descriptors.add( BATCH_SIZE_PROPERTY );
+		descriptors.add( TRENDING_WINDOW_PROPERTY );
+		descriptors.add( TRENDING_DECAY_PROPERTY );
+		descriptors.add( TRENDING_SIZE_PROPERTY );
+		descriptors.add( SKETCH_WIDTH_PROPERTY );
+		descriptors.add( SKETCH_DEPTH_PROPERTY );
+		descriptors = Collections.unmodifiableList( descriptors );
+		
+		relationships = new HashSet<>();
+		relationships.add( FAILURE_RELATIONSHIP );
+		relationships.add( ORIGINAL_RELATIONSHIP );
+		relationships.add( SUMMARY_RELATIONSHIP );
+		relationships = Collections.unmodifiableSet( relationships );
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@OnScheduled
+	public void onScheduled( final ProcessContext context ) {
+		int depth = context.getProperty( SKETCH_DEPTH_PROPERTY ).asInteger();
+		int width = context.getProperty( SKETCH_WIDTH_PROPERTY ).asInteger();
+		int size = context.getProperty( TRENDING_SIZE_PROPERTY ).asInteger();
+		Window window = new Window(
+			new KaNiaFiSketch( depth, width, size ),
+			new KaNiaFiSketch( depth, width, size ),
+			context.getProperty( TRENDING_WINDOW_PROPERTY ).asTimePeriod( TimeUnit.MILLISECONDS ),
+			Double.parseDouble( context.getProperty( TRENDING_DECAY_PROPERTY ).getValue() ),
+			System.currentTimeMillis()
+		);
+		try {
+			StateMap state = context.getStateManager().getState( Scope.LOCAL );
+			if( state.get( "window.start" ) != null ) {
+				window.start = Long.parseLong( state.get( "window.start" ) );
+				window.captions = state.get( "captions" ) != null ? Long.parseLong( state.get( "captions" ) ) : 0;
+				restore( window.hashtags, state.get( "hashtags" ) );
+				restore( window.mentions, state.get( "mentions" ) );
+			}
+		}
+		catch( IOException | NumberFormatException e ) {
+			getLogger().error( "Failed to restore trending state, counting from an empty window {}", new Object[]{ e } );
+		}
+		this.window = window;
+	}
+
+	/**
+	 * Stores the partial window without decaying it, so a restart goes on
+	 * counting the current window.
+	 */
+	@OnStopped
+	public void onStopped( final ProcessContext context ) {
+		Window window = this.window;
+		if( window == null ) {
+			return;
+		}
+		Map<String, String> state = new HashMap<>();
+		window.state( state );
+		try {
+			context.getStateManager().setState( state, Scope.LOCAL );
+		}
+		catch( IOException e ) {
+			getLogger().error( "Failed to store trending state {}", new Object[]{ e } );
+		}
+		this.window = null;
+	}
+
+	@Override
+	public void onTrigger( final ProcessContext context, final ProcessSession session ) {
+		ComponentLog logger = getLogger();
+		Window window = this.window;
+		List<FlowFile> flowFiles = session.get( context.getProperty( BATCH_SIZE_PROPERTY ).asInteger() );
+		KaNiaFiMediaCaption.Caption caption = new KaNiaFiMediaCaption.Caption( false );
+		for( FlowFile flowFile : flowFiles ) {
+			try( InputStream flowFileInputStream = session.read( flowFile );
+				JsonParser parser = KaNiaFi.objectMapper.getFactory().createParser( flowFileInputStream ) ) {
+				while( caption.next( parser ) ) {
+					window.add( caption );
+				}
+			}
+			catch( IOException e ) {
+				logger.error( "Failed to parse FlowFile contents {}", new Object[]{ flowFile, e } );
+				session.transfer( flowFile, FAILURE_RELATIONSHIP );
+				continue;
+			}
+			session.transfer( flowFile, ORIGINAL_RELATIONSHIP );
+		}
+		ObjectNode summary = window.summary( System.currentTimeMillis() );
+		if( summary == null ) {
+			if( flowFiles.isEmpty() ) {
+				context.yield();
+			}
+			return;
+		}
+		FlowFile summaryFlowFile = session.create();
+		summaryFlowFile = session.write( summaryFlowFile, out -> KaNiaFi.objectMapper.writeValue( out, summary ) );
+		Map<String, String> attributes = new HashMap<>();
+		attributes.put( CoreAttributes.MIME_TYPE.key(), "application/json" );
+		attributes.put( "window.start", summary.get( "window_start" ).asText() );
+		attributes.put( "window.end", summary.get( "window_end" ).asText() );
+		session.transfer( session.putAllAttributes( summaryFlowFile, attributes ), SUMMARY_RELATIONSHIP );
+		long end = summary.get( "window_end" ).asLong();
+		session.commitAsync( () -> {
+			Map<String, String> state = new HashMap<>();
+			window.rotate( end, state );
+			try {
+				context.getStateManager().setState( state, Scope.LOCAL );
+			}
+			catch( IOException e ) {
+				logger.error( "Failed to store trending state {}", new Object[]{ e } );
+			}
+		});
+	}
+
+	private static void restore( KaNiaFiSketch sketch, String items ) throws IOException {
+		if( items == null ) {
+			return;
+		}
+		Iterator<Map.Entry<String, JsonNode>> iterator = KaNiaFi.objectMapper.readTree( items ).fields();
+		while( iterator.hasNext() ) {
+			Map.Entry<String, JsonNode> item = iterator.next();
+			sketch.restore( item.getKey(), item.getValue().asDouble() );
+		}
+	}
+
+	/**
+	 * Sketches of the current window, shared by every concurrent task and
+	 * only touched while holding its monitor.
+	 */
+	private static final class Window {
+
+		private long captions;
+		private final double decay;
+		private final KaNiaFiSketch hashtags;
+		private final long length;
+		private final KaNiaFiSketch mentions;
+		private long start;
+
+		private Window( KaNiaFiSketch hashtags, KaNiaFiSketch mentions, long length, double decay, long start ) {
+			this.decay = decay;
+			this.hashtags = hashtags;
+			this.length = length;
+			this.mentions = mentions;
+			this.start = start;
+		}
+
+		private synchronized void add( KaNiaFiMediaCaption.Caption caption ) {
+			for( int i = 0; i < caption.size; i += 3 ) {
+				if( caption.tokens[i] == KaNiaFiCaptionScanner.HASHTAG ) {
+					this.hashtags.add( caption.text, caption.tokens[i + 1], caption.tokens[i + 2] );
+				}
+				else if( caption.tokens[i] == KaNiaFiCaptionScanner.MENTION ) {
+					this.mentions.add( caption.text, caption.tokens[i + 1], caption.tokens[i + 2] );
+				}
+			}
+			this.captions++;
+		}
+
+		private static ArrayNode items( KaNiaFiSketch sketch ) {
+			ArrayNode items = KaNiaFi.objectMapper.createArrayNode();
+			for( KaNiaFiSketch.Item item : sketch.top() ) {
+				items.addObject()
+					.put( "key", item.key() )
+					.put( "count", Math.round( item.count() * 100 ) / 100.0 );
+			}
+			return items;
+		}
+
+		/**
+		 * Closes the window once the summary reached downstream, the counts
+		 * are decayed and the next window starts where the summary ended.
+		 */
+		private synchronized void rotate( long end, Map<String, String> state ) {
+			this.hashtags.decay( this.decay );
+			this.mentions.decay( this.decay );
+			this.captions = 0;
+			this.start = end;
+			this.state( state );
+		}
+
+		/**
+		 * Summary of the window once its length has elapsed, the window is
+		 * left untouched until the summary is committed.
+		 */
+		private synchronized ObjectNode summary( long now ) {
+			if( now - this.start < this.length ) {
+				return null;
+			}
+			ObjectNode summary = KaNiaFi.objectMapper.createObjectNode();
+			summary.put( "window_start", this.start );
+			summary.put( "window_end", now );
+			summary.put( "captions", this.captions );
+			summary.set( "hashtags", items( this.hashtags ) );
+			summary.set( "mentions", items( this.mentions ) );
+			return summary;
+		}
+
+		private synchronized void state( Map<String, String> state ) {
+			state.put( "window.start", String.valueOf( this.start ) );
+			state.put( "captions", String.valueOf( this.captions ) );
+			state.put( "hashtags", state( this.hashtags ) );
+			state.put( "mentions", state( this.mentions ) );
+		}
+
+		private static String state( KaNiaFiSketch sketch ) {
+			ObjectNode state = KaNiaFi.objectMapper.createObjectNode();
+			for( KaNiaFiSketch.Item item : sketch.top() ) {
+				state.put( item.key(), item.count() );
+			}
+			return state.toString();
+		}
+
+	}
+
+}
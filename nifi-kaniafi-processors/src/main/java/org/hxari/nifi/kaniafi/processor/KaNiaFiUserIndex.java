@@ -0,0 +1,157 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.processor;
+
+import java.util.Arrays;
+
+/**
+ * Bounded index of recently seen users keyed by their primary key.
+ *
+ * Keys live in two generations of open addressing long tables, a key is
+ * looked up in the current and the previous generation and the current one
+ * is rotated into the previous once it is full or older than the window,
+ * so a key is remembered for at least one window unless the capacity is
+ * reached first, and for at most two windows. A 64-bit digest of the
+ * serialized user is kept next to every key so a changed user is not
+ * reported as seen.
+ *
+ * Looking a key up never changes the index, keys are only recorded once
+ * the users are committed downstream, so a rolled back FlowFile finds its
+ * users unseen again when it is retried.
+ */
+public final class KaNiaFiUserIndex {
+
+	private static final class Generation {
+
+		private final long[] keys;
+		private final long[] hashes;
+		private final boolean[] used;
+		private final int mask;
+		private int size;
+		private long started;
+
+		private Generation( int slots, long started ) {
+			this.keys = new long[slots];
+			this.hashes = new long[slots];
+			this.used = new boolean[slots];
+			this.mask = slots - 1;
+			this.started = started;
+		}
+
+		private int find( long key ) {
+			int slot = ( int ) mix( key ) & this.mask;
+			while( this.used[slot] ) {
+				if( this.keys[slot] == key ) {
+					return slot;
+				}
+				slot = ( slot + 1 ) & this.mask;
+			}
+			return -1 - slot;
+		}
+
+		private void put( int slot, long key, long hash ) {
+			if( slot < 0 ) {
+				slot = -1 - slot;
+				this.used[slot] = true;
+				this.keys[slot] = key;
+				this.size++;
+			}
+			this.hashes[slot] = hash;
+		}
+
+		private void reset( long started ) {
+			Arrays.fill( this.used, false );
+			this.size = 0;
+			this.started = started;
+		}
+
+	}
+
+	private static final int MAX_SLOTS = 1 << 30;
+
+	private final int capacity;
+	private Generation current;
+	private Generation previous;
+	private final long window;
+
+	public KaNiaFiUserIndex( int capacity, long windowNanos, long now ) {
+		int slots = ( int ) Math.min( MAX_SLOTS, Long.highestOneBit( Math.max( 2L, capacity ) * 2 - 1 ) << 1 );
+		this.capacity = Math.min( capacity, slots / 2 );
+		this.current = new Generation( slots, now );
+		this.previous = new Generation( slots, now );
+		this.window = windowNanos;
+	}
+
+	/**
+	 * 64-bit FNV-1a digest of a serialized user.
+	 */
+	public static long digest( byte[] record ) {
+		long hash = 0xcbf29ce484222325L;
+		for( byte b : record ) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix( hash );
+	}
+
+	private static long mix( long key ) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private boolean expired( long now ) {
+		return now - this.current.started >= this.window || this.current.size >= this.capacity;
+	}
+
+	/**
+	 * Records the key with its content hash.
+	 */
+	public synchronized void record( long key, long hash, long now ) {
+		if( this.expired( now ) ) {
+			Generation generation = this.previous;
+			generation.reset( now );
+			this.previous = this.current;
+			this.current = generation;
+		}
+		this.current.put( this.current.find( key ), key, hash );
+	}
+
+	/**
+	 * Tells whether the key was recorded with the same hash, without
+	 * recording it.
+	 */
+	public synchronized boolean seen( long key, long hash, long now ) {
+		int slot = this.current.find( key );
+		if( slot >= 0 ) {
+			return this.current.hashes[slot] == hash;
+		}
+		if( this.expired( now ) ) {
+			return false;
+		}
+		int previous = this.previous.find( key );
+		return previous >= 0 && this.previous.hashes[previous] == hash;
+	}
+
+	public synchronized int size() {
+		return this.current.size + this.previous.size;
+	}
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.processor;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KaNiaFiBranchingTest {
+
+    final public static String PROFILE = "{\"status\":\"ok\",\"user\":{\"pk\":1,\"full_name\":\"Kana\",\"username\":\"kana\"}}";
+    final public static String USER = "{\"pk\":1,\"full_name\":\"Kana\",\"username\":\"kana\"}";
+    final public static String UNKNOWN = "{\"kana\":\"nia\"}";
+
+    private TestRunner runner;
+
+    @BeforeEach
+    public void init() throws Exception {
+        runner = TestRunners.newTestRunner( KaNiaFiBranching.class );
+        runner.setProperty( KaNiaFiBranching.SCHEME_SOURCE_PROPERTY, Paths.get( getClass().getResource( "/schemes/scheme.json" ).toURI() ).toString() );
+    }
+
+    @Test
+    public void testBranching() {
+        runner.enqueue( PROFILE );
+        runner.enqueue( USER );
+        runner.enqueue( UNKNOWN );
+        runner.run( 3 );
+        runner.assertTransferCount( KaNiaFiBranching.PROFILE_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.USER_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.UNKNOWN_RELATIONSHIP, 1 );
+        MockFlowFile profile = runner.getFlowFilesForRelationship( KaNiaFiBranching.PROFILE_RELATIONSHIP ).get( 0 );
+        profile.assertAttributeEquals( "scheme.type", "profile-api-info:id" );
+    }
+
+    @Test
+    public void testBundle() {
+        runner.setProperty( KaNiaFiBranching.CONTENT_FORMAT_PROPERTY, KaNiaFiBranching.CONTENT_FORMAT_NDJSON );
+        runner.enqueue( String.join( "\n", USER, PROFILE, USER, "", UNKNOWN, "{\"kana\":" ) + "\n" );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiBranching.ORIGINAL_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.USER_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.PROFILE_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.UNKNOWN_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.FAILURE_RELATIONSHIP, 1 );
+        MockFlowFile users = runner.getFlowFilesForRelationship( KaNiaFiBranching.USER_RELATIONSHIP ).get( 0 );
+        users.assertContentEquals( USER + "\n" + USER + "\n" );
+        users.assertAttributeEquals( "record.count", "2" );
+        users.assertAttributeEquals( "scheme.type", "user" );
+    }
+
+    @Test
+    public void testConnectedOnly() {
+        runner.setProperty( KaNiaFiBranching.SCHEME_CONNECTED_ONLY_PROPERTY, "true" );
+        runner.addConnection( KaNiaFiBranching.USER_RELATIONSHIP );
+        runner.enqueue( USER );
+        runner.enqueue( PROFILE );
+        runner.enqueue( UNKNOWN );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiBranching.USER_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.DROPPED_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.UNKNOWN_RELATIONSHIP, 1 );
+    }
+
+    @Test
+    public void testConnectedOnlyValidated( @TempDir Path directory ) throws Exception {
+        Path source = directory.resolve( "scheme.json" );
+        Files.write( source, ( "[{\"type\":\"user\",\"scheme\":{\"type\":\"object\",\"required\":[\"pk\"],\"properties\":{\"username\":{\"type\":\"string\"}}}}," 
+            + "{\"type\":\"profile\",\"scheme\":{\"type\":\"object\",\"required\":[\"pk\"]}}]" ).getBytes( StandardCharsets.UTF_8 ) );
+        runner.setProperty( KaNiaFiBranching.SCHEME_SOURCE_PROPERTY, source.toString() );
+        runner.setProperty( KaNiaFiBranching.SCHEME_CONNECTED_ONLY_PROPERTY, "true" );
+        runner.addConnection( KaNiaFiBranching.USER_RELATIONSHIP );
+        runner.enqueue( "{\"pk\":1,\"username\":1}" );
+        runner.run( 1 );
+        runner.setProperty( KaNiaFiBranching.CLASSIFICATION_MODE_PROPERTY, KaNiaFiBranching.CLASSIFICATION_MODE_STREAMING );
+        runner.enqueue( "{\"pk\":1,\"username\":1}" );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiBranching.UNKNOWN_RELATIONSHIP, 2 );
+        runner.assertTransferCount( KaNiaFiBranching.USER_RELATIONSHIP, 0 );
+        runner.assertTransferCount( KaNiaFiBranching.DROPPED_RELATIONSHIP, 0 );
+    }
+
+    @Test
+    public void testAdaptiveOrdering() {
+        runner.setProperty( KaNiaFiBranching.SCHEME_ORDERING_PROPERTY, KaNiaFiBranching.SCHEME_ORDERING_ADAPTIVE );
+        runner.setProperty( KaNiaFiBranching.SCHEME_ORDERING_INTERVAL_PROPERTY, "0 sec" );
+        runner.enqueue( USER );
+        runner.enqueue( USER );
+        runner.enqueue( PROFILE );
+        runner.run( 1 );
+        assertEquals( 2, runner.getCounterValue( "Scheme Hits user" ) );
+        assertEquals( 1, runner.getCounterValue( "Scheme Rank user" ) );
+        assertEquals( 2, runner.getCounterValue( "Scheme Rank profile" ) );
+    }
+
+    @Test
+    public void testStatistics() {
+        runner.enqueue( USER );
+        runner.enqueue( USER );
+        runner.enqueue( UNKNOWN );
+        runner.run( 1 );
+        assertEquals( 2, runner.getCounterValue( "Type FlowFiles user" ) );
+        assertEquals( USER.length() * 2, runner.getCounterValue( "Type Bytes user" ) );
+        assertEquals( 1, runner.getCounterValue( "Type FlowFiles unknown" ) );
+        KaNiaFiStatistics statistics = ( ( KaNiaFiBranching ) runner.getProcessor() ).getStatistics();
+        assertEquals( 2, statistics.get( KaNiaFiType.USER ).count() );
+        assertTrue( statistics.get( KaNiaFiType.USER ).candidates() >= 2 );
+        assertTrue( statistics.summary().startsWith( "unknown count=1" ) );
+    }
+
+    @Test
+    public void testSchemeReference() throws Exception {
+        runner.setProperty( KaNiaFiBranching.SCHEME_ATTRIBUTE_PROPERTY, KaNiaFiBranching.SCHEME_ATTRIBUTE_REFERENCE );
+        runner.assertNotValid();
+        KaNiaFiSchemeHolder holder = new KaNiaFiSchemeHolder( Paths.get( getClass().getResource( "/schemes/scheme.json" ).toURI() ).toString(), -1, runner.getLogger() );
+        KaNiaFiExtractUserTest.Registry service = new KaNiaFiExtractUserTest.Registry( holder );
+        runner.addControllerService( "registry", service );
+        runner.enableControllerService( service );
+        runner.setProperty( KaNiaFiBranching.SCHEME_REGISTRY_PROPERTY, "registry" );
+        runner.setProperty( KaNiaFiBranching.SCHEME_ATTRIBUTE_PROPERTY, KaNiaFiBranching.SCHEME_ATTRIBUTE_REFERENCE );
+        runner.enqueue( USER );
+        runner.run( 1 );
+        MockFlowFile user = runner.getFlowFilesForRelationship( KaNiaFiBranching.USER_RELATIONSHIP ).get( 0 );
+        user.assertAttributeNotExists( "scheme.json" );
+        user.assertAttributeEquals( "scheme.id", "user" );
+        user.assertAttributeEquals( "scheme.version", "1" );
+        JsonNode scheme = holder.get().entries().stream().filter( entry -> entry.name().equals( "user" ) ).findFirst().get().scheme();
+        assertEquals( scheme, KaNiaFi.objectMapper.readTree( service.resolve( "user", user.getAttribute( "scheme.digest" ) ) ) );
+        assertNull( service.resolve( "profile", user.getAttribute( "scheme.digest" ) ) );
+    }
+
+    @Test
+    public void testStreaming() {
+        runner.setProperty( KaNiaFiBranching.CLASSIFICATION_MODE_PROPERTY, KaNiaFiBranching.CLASSIFICATION_MODE_STREAMING );
+        runner.enqueue( PROFILE );
+        runner.enqueue( USER );
+        runner.enqueue( UNKNOWN );
+        runner.enqueue( "{\"kana\":" );
+        runner.run( 4 );
+        runner.assertTransferCount( KaNiaFiBranching.PROFILE_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.USER_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.UNKNOWN_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.FAILURE_RELATIONSHIP, 1 );
+        runner.getFlowFilesForRelationship( KaNiaFiBranching.PROFILE_RELATIONSHIP ).get( 0 ).assertAttributeEquals( "scheme.type", "profile-api-info:id" );
+    }
+
+    @Test
+    public void testStreamingTruncated() {
+        runner.setProperty( KaNiaFiBranching.CLASSIFICATION_MODE_PROPERTY, KaNiaFiBranching.CLASSIFICATION_MODE_STREAMING );
+        runner.setProperty( KaNiaFiBranching.CLASSIFICATION_FIELDS_PROPERTY, "3" );
+        runner.enqueue( "{\"pk\":1,\"full_name\":\"Kana\",\"username\":\"kana\",\"kana\":[1," );
+        runner.enqueue( "{\"pk\":1,\"full_name\":\"Kana\",\"username\":\"kana\",\"kana\":\"nia\"}" );
+        runner.run( 2 );
+        runner.assertTransferCount( KaNiaFiBranching.FAILURE_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiBranching.USER_RELATIONSHIP, 1 );
+    }
+
+    @Test
+    public void testFingerprintCache() {
+        runner.setProperty( KaNiaFiBranching.FINGERPRINT_CACHE_SIZE_PROPERTY, "16" );
+        runner.setProperty( KaNiaFiBranching.FINGERPRINT_REVALIDATE_PROPERTY, "2" );
+        runner.enqueue( PROFILE );
+        runner.enqueue( PROFILE );
+        runner.enqueue( PROFILE );
+        runner.enqueue( UNKNOWN );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiBranching.PROFILE_RELATIONSHIP, 3 );
+        runner.assertTransferCount( KaNiaFiBranching.UNKNOWN_RELATIONSHIP, 1 );
+        assertEquals( 2, runner.getCounterValue( "Fingerprint Cache Hits" ) );
+        assertEquals( 2, runner.getCounterValue( "Fingerprint Cache Misses" ) );
+    }
+
+    @Test
+    public void testClassifier() throws Exception {
+        KaNiaFiScheme scheme = KaNiaFiScheme.compile( getClass().getResourceAsStream( "/schemes/scheme.json" ).readAllBytes(), 1 );
+        KaNiaFiClassifier classifier = scheme.classifier();
+        List<KaNiaFiScheme.Entry> candidates = classifier.candidates( KaNiaFi.objectMapper.readTree( PROFILE ) );
+        assertEquals( 1, candidates.size() );
+        assertEquals( KaNiaFiType.PROFILE, candidates.get( 0 ).type() );
+        assertTrue( classifier.candidates( KaNiaFi.objectMapper.readTree( UNKNOWN ) ).isEmpty() );
+    }
+
+    @Test
+    public void testReload( @TempDir Path directory ) throws Exception {
+        JsonNode schemes = KaNiaFi.objectMapper.readTree( getClass().getResourceAsStream( "/schemes/scheme.json" ) );
+        ArrayNode profile = KaNiaFi.objectMapper.createArrayNode();
+        for( JsonNode node : schemes ) {
+            if( node.get( "type" ).asText().equals( "profile" ) ) {
+                profile.add( node );
+            }
+        }
+        Path source = directory.resolve( "scheme.json" );
+        Files.write( source, KaNiaFi.objectMapper.writeValueAsBytes( profile ) );
+        runner.setProperty( KaNiaFiBranching.SCHEME_SOURCE_PROPERTY, source.toString() );
+        runner.setProperty( KaNiaFiBranching.SCHEME_RELOAD_INTERVAL_PROPERTY, "0 sec" );
+        runner.enqueue( PROFILE );
+        runner.run( 1, false );
+        runner.assertAllFlowFilesTransferred( KaNiaFiBranching.PROFILE_RELATIONSHIP, 1 );
+        runner.clearTransferState();
+        Files.write( source, "[]".getBytes( StandardCharsets.UTF_8 ) );
+        runner.enqueue( PROFILE );
+        runner.run( 1, true, false );
+        runner.assertAllFlowFilesTransferred( KaNiaFiBranching.UNKNOWN_RELATIONSHIP, 1 );
+    }
+
+}
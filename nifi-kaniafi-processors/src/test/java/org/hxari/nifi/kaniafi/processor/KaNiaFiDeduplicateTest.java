@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.processor;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KaNiaFiDeduplicateTest {
+
+    final public static String MEDIA = "{\"id\":\"3142_1\",\"caption\":{\"pk\":\"17\",\"text\":\"#kana\"},\"media_id\":3142}";
+    final public static String COMMENT = "{\"pk\":\"17\",\"media_id\":3142,\"text\":\"@nia\"}";
+
+    @TempDir
+    public Path directory;
+
+    private TestRunner runner;
+
+    @BeforeEach
+    public void init() {
+        runner = TestRunners.newTestRunner( KaNiaFiDeduplicate.class );
+        runner.setProperty( KaNiaFiDeduplicate.SEEN_DIRECTORY_PROPERTY, directory.toString() );
+    }
+
+    @Test
+    public void testDeduplicate() {
+        runner.enqueue( MEDIA );
+        runner.enqueue( COMMENT );
+        runner.enqueue( MEDIA );
+        runner.enqueue( "{\"caption\":null}" );
+        runner.run( 1, false );
+        runner.assertTransferCount( KaNiaFiDeduplicate.UNIQUE_RELATIONSHIP, 2 );
+        runner.assertTransferCount( KaNiaFiDeduplicate.DUPLICATE_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiDeduplicate.FAILURE_RELATIONSHIP, 1 );
+        runner.getFlowFilesForRelationship( KaNiaFiDeduplicate.UNIQUE_RELATIONSHIP ).get( 0 ).assertAttributeEquals( "seen.id", "3142" );
+        runner.getFlowFilesForRelationship( KaNiaFiDeduplicate.UNIQUE_RELATIONSHIP ).get( 1 ).assertAttributeEquals( "seen.id", "17" );
+        runner.clearTransferState();
+        runner.setProperty( KaNiaFiDeduplicate.ID_ATTRIBUTE_PROPERTY, "media.id" );
+        runner.enqueue( "", Collections.singletonMap( "media.id", "3142_1" ) );
+        runner.enqueue( "", Collections.singletonMap( "media.id", "3143" ) );
+        runner.run( 1, true, false );
+        runner.assertTransferCount( KaNiaFiDeduplicate.UNIQUE_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiDeduplicate.DUPLICATE_RELATIONSHIP, 1 );
+        runner.clearTransferState();
+        runner.removeProperty( KaNiaFiDeduplicate.ID_ATTRIBUTE_PROPERTY );
+        runner.enqueue( MEDIA );
+        runner.enqueue( COMMENT );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiDeduplicate.DUPLICATE_RELATIONSHIP, 2 );
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        long[] ids = new long[1];
+        try( KaNiaFiSeenIndex index = new KaNiaFiSeenIndex( directory, 12 ) ) {
+            for( long id = 0; id < 10; id++ ) {
+                assertTrue( index.claim( id ) );
+                assertFalse( index.claim( id ) );
+                ids[0] = id;
+                index.commit( ids, 1 );
+            }
+            assertTrue( index.claim( 10 ) );
+            ids[0] = 10;
+            index.release( ids, 1 );
+            assertEquals( 10, index.count() );
+            assertThrows( IOException.class, () -> new KaNiaFiSeenIndex( directory, 12 ) );
+        }
+        try( KaNiaFiSeenIndex index = new KaNiaFiSeenIndex( directory, 12 ) ) {
+            assertEquals( 10, index.count() );
+            assertTrue( index.contains( 0 ) );
+            assertFalse( index.contains( 10 ) );
+            for( long id = 10; id < 12; id++ ) {
+                ids[0] = id;
+                index.commit( ids, 1 );
+            }
+            assertEquals( 6, index.count() );
+            assertFalse( index.contains( 5 ) );
+            assertTrue( index.contains( 6 ) );
+            assertTrue( index.contains( 11 ) );
+        }
+        try( KaNiaFiSeenIndex index = new KaNiaFiSeenIndex( directory, 100 ) ) {
+            assertEquals( 6, index.count() );
+            assertTrue( index.contains( 11 ) );
+        }
+    }
+
+}
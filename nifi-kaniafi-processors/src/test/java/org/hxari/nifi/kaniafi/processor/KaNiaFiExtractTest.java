@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.processor;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class KaNiaFiExtractTest {
+
+    final public static String CONTENT = "{\"user\":{\"pk\":1,\"username\":\"kana\",\"tags\":[1.5,true,null]},\"status\":\"ok\"}";
+    final public static String CHECKPOINT = "{\"checkpoint_url\":\"/challenge/\",\"lock\":true,\"status\":\"fail\"}";
+
+    private TestRunner runner;
+
+    public static String response( String target, String status, String content ) {
+        return "{\"target\":\"" + target + "\",\"browser\":\"firefox\",\"unixtime\":1700000000," + 
+            "\"request\":{\"body\":null,\"query\":{},\"cookies\":{},\"headers\":{}}," + 
+            "\"response\":{\"status\":\"" + status + "\",\"cookies\":{},\"headers\":{},\"content\":" + content + "}}";
+    }
+
+    @BeforeEach
+    public void init() {
+        runner = TestRunners.newTestRunner( KaNiaFiExtract.class );
+    }
+
+    @Test
+    public void testSuccess() {
+        runner.enqueue( response( "https://www.instagram.com/api/v1/users/1/info/", "<Response [200]>", CONTENT ) );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( KaNiaFiExtract.SUCCESS_RELATIONSHIP, 1 );
+        MockFlowFile flowFile = runner.getFlowFilesForRelationship( KaNiaFiExtract.SUCCESS_RELATIONSHIP ).get( 0 );
+        flowFile.assertContentEquals( CONTENT );
+        flowFile.assertAttributeEquals( "browser", "firefox" );
+        flowFile.assertAttributeEquals( "datetime", "2023-11-15T07:13:20" );
+        flowFile.assertAttributeEquals( "response", "{\"status\":\"<Response [200]>\",\"cookies\":{},\"headers\":{},\"content\":" + CONTENT + "}" );
+    }
+
+    @Test
+    public void testStreamedContent() {
+        runner.setProperty( KaNiaFiExtract.RESPONSE_CONTENT_ATTRIBUTE_PROPERTY, "false" );
+        runner.enqueue( response( "https://www.instagram.com/api/v1/users/1/info/", "<Response [200]>", CONTENT ) );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( KaNiaFiExtract.SUCCESS_RELATIONSHIP, 1 );
+        MockFlowFile flowFile = runner.getFlowFilesForRelationship( KaNiaFiExtract.SUCCESS_RELATIONSHIP ).get( 0 );
+        flowFile.assertContentEquals( CONTENT );
+        flowFile.assertAttributeEquals( "response", "{\"status\":\"<Response [200]>\",\"cookies\":{},\"headers\":{}}" );
+    }
+
+    @Test
+    public void testDatetimeFields() {
+        runner.setProperty( KaNiaFiExtract.DATETIME_FIELDS_PROPERTY, "taken_at, created_at" );
+        runner.enqueue( response( "https://www.instagram.com/", "<Response [200]>", "{\"items\":[{\"taken_at\":1700000000,\"caption\":{\"created_at\":1700000001}}],\"created_at\":\"now\"}" ) );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtract.SUCCESS_RELATIONSHIP, 1 );
+        runner.getFlowFilesForRelationship( KaNiaFiExtract.SUCCESS_RELATIONSHIP ).get( 0 ).assertContentEquals(
+            "{\"items\":[{\"taken_at\":1700000000,\"taken_at_datetime\":\"2023-11-15T07:13:20\",\"caption\":{\"created_at\":1700000001,\"created_at_datetime\":\"2023-11-15T07:13:21\"}}],\"created_at\":\"now\"}"
+        );
+    }
+
+    @Test
+    public void testExistingDatetimeFields() {
+        runner.setProperty( KaNiaFiExtract.DATETIME_FIELDS_PROPERTY, "taken_at" );
+        runner.enqueue( response( "https://www.instagram.com/", "<Response [200]>", "[{\"taken_at_datetime\":\"kept\",\"taken_at\":1700000000},{\"taken_at\":1700000000,\"taken_at_datetime\":\"late\"}]" ) );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtract.SUCCESS_RELATIONSHIP, 1 );
+        runner.getFlowFilesForRelationship( KaNiaFiExtract.SUCCESS_RELATIONSHIP ).get( 0 ).assertContentEquals(
+            "[{\"taken_at_datetime\":\"kept\",\"taken_at\":1700000000},{\"taken_at\":1700000000,\"taken_at_datetime\":\"2023-11-15T07:13:20\"}]"
+        );
+    }
+
+    @Test
+    public void testProjection() {
+        runner.setProperty( "user.agent", "/request/headers/User-Agent" );
+        runner.setProperty( "status", "/response/status" );
+        runner.setProperty( KaNiaFiExtract.ATTRIBUTE_MAX_SIZE_PROPERTY, "10 B" );
+        runner.setProperty( KaNiaFiExtract.ENVELOPE_SPILL_PROPERTY, "true" );
+        runner.enqueue( response( "https://www.instagram.com/", "<Response [200]>", CONTENT ) );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtract.SUCCESS_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtract.ENVELOPE_RELATIONSHIP, 1 );
+        MockFlowFile flowFile = runner.getFlowFilesForRelationship( KaNiaFiExtract.SUCCESS_RELATIONSHIP ).get( 0 );
+        flowFile.assertAttributeNotExists( "url" );
+        flowFile.assertAttributeNotExists( "user.agent" );
+        flowFile.assertAttributeNotExists( "status" );
+        flowFile.assertAttributeEquals( "attributes.overflow", "status" );
+        MockFlowFile envelope = runner.getFlowFilesForRelationship( KaNiaFiExtract.ENVELOPE_RELATIONSHIP ).get( 0 );
+        flowFile.assertAttributeEquals( "envelope.uuid", envelope.getAttribute( "uuid" ) );
+        envelope.assertContentEquals( response( "https://www.instagram.com/", "<Response [200]>", CONTENT ).replace( ",\"content\":" + CONTENT, "" ) );
+    }
+
+    @Test
+    public void testRouting() {
+        runner.enqueue( response( "https://www.instagram.com/challenge/", "<Response [200]>", CHECKPOINT ) );
+        runner.enqueue( response( "https://www.instagram.com/", "<Response [401]>", CONTENT ) );
+        runner.enqueue( response( "https://example.com/", "<Response [200]>", CONTENT ) );
+        runner.enqueue( response( "https://www.instagram.com/", "<Response [200]>", "{\"status\":" ) );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtract.CHECKPOINT_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtract.UNAUTHORIZED_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtract.INVALID_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtract.FAILURE_RELATIONSHIP, 1 );
+        MockFlowFile checkpoint = runner.getFlowFilesForRelationship( KaNiaFiExtract.CHECKPOINT_RELATIONSHIP ).get( 0 );
+        checkpoint.assertAttributeEquals( "checkpoint.url", "/challenge/" );
+        checkpoint.assertAttributeEquals( "checkpoint.lock", "true" );
+        checkpoint.assertContentEquals( CHECKPOINT );
+        MockFlowFile unauthorized = runner.getFlowFilesForRelationship( KaNiaFiExtract.UNAUTHORIZED_RELATIONSHIP ).get( 0 );
+        unauthorized.assertContentEquals( response( "https://www.instagram.com/", "<Response [401]>", CONTENT ) );
+        unauthorized.assertAttributeEquals( "response.status", "<Response [401]>" );
+        MockFlowFile invalid = runner.getFlowFilesForRelationship( KaNiaFiExtract.INVALID_RELATIONSHIP ).get( 0 );
+        invalid.assertContentEquals( response( "https://example.com/", "<Response [200]>", CONTENT ) );
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.processor;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.hxari.nifi.kaniafi.service.KaNiaFiSchemaRegistry;
+import org.hxari.nifi.kaniafi.service.KaNiaFiSchemaSnapshot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class KaNiaFiExtractUserTest {
+
+    final public static String USERS = "{\"status\":\"ok\",\"users\":[{\"pk\":1,\"full_name\":\"Kana\",\"username\":\"kana\"},{\"pk\":2,\"full_name\":\"Nia\",\"username\":\"nia\"}]}";
+
+    @TempDir
+    public Path directory;
+
+    private TestRunner runner;
+
+    @BeforeEach
+    public void init() throws Exception {
+        JsonNode scheme = null;
+        for( JsonNode node : KaNiaFi.objectMapper.readTree( getClass().getResourceAsStream( "/schemes/scheme.json" ) ) ) {
+            if( node.get( "type" ).asText().equals( "user" ) ) {
+                scheme = node.get( "scheme" );
+            }
+        }
+        Path source = directory.resolve( "scheme-user.json" );
+        Files.write( source, KaNiaFi.objectMapper.writeValueAsBytes( scheme ) );
+        runner = TestRunners.newTestRunner( KaNiaFiExtractUser.class );
+        runner.setProperty( KaNiaFiExtractUser.SCHEME_SOURCE_PROPERTY, source.toString() );
+    }
+
+    @Test
+    public void testArray() throws Exception {
+        runner.setProperty( KaNiaFiExtractUser.TRANSFER_TYPE_PROPERTY, "Array" );
+        runner.enqueue( USERS );
+        runner.enqueue( USERS );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.ORIGINAL_RELATIONSHIP, 2 );
+        runner.assertTransferCount( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP, 2 );
+        MockFlowFile users = runner.getFlowFilesForRelationship( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP ).get( 0 );
+        users.assertAttributeEquals( "scheme.type", "user" );
+        assertEquals( 2, KaNiaFi.objectMapper.readTree( users.getContent() ).size() );
+    }
+
+    @Test
+    public void testChunked() {
+        runner.setProperty( KaNiaFiExtractUser.TRANSFER_TYPE_PROPERTY, "Chunked" );
+        runner.setProperty( KaNiaFiExtractUser.CHUNK_SIZE_PROPERTY, "1" );
+        runner.setProperty( KaNiaFiExtractUser.CHUNK_FORMAT_PROPERTY, KaNiaFiExtractUser.CHUNK_FORMAT_NDJSON );
+        runner.enqueue( USERS );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.ORIGINAL_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP, 2 );
+        MockFlowFile users = runner.getFlowFilesForRelationship( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP ).get( 1 );
+        users.assertContentEquals( "{\"pk\":2,\"full_name\":\"Nia\",\"username\":\"nia\"}\n" );
+        users.assertAttributeEquals( "record.count", "1" );
+    }
+
+    @Test
+    public void testAttributes() {
+        runner.setProperty( KaNiaFiExtractUser.ATTRIBUTES_EXCLUDE_PROPERTY, "request.*|response.*" );
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put( "url", "https://www.instagram.com/" );
+        attributes.put( "request", "{}" );
+        attributes.put( "response.headers", "{}" );
+        runner.enqueue( USERS, attributes );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP, 2 );
+        MockFlowFile user = runner.getFlowFilesForRelationship( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP ).get( 0 );
+        user.assertAttributeEquals( "url", "https://www.instagram.com/" );
+        user.assertAttributeEquals( "scheme.type", "user" );
+        user.assertAttributeNotExists( "request" );
+        user.assertAttributeNotExists( "response.headers" );
+    }
+
+    @Test
+    public void testDeduplication() {
+        runner.setProperty( KaNiaFiExtractUser.DEDUPLICATION_PROPERTY, KaNiaFiExtractUser.DEDUPLICATION_KEY_CONTENT );
+        runner.enqueue( USERS );
+        runner.enqueue( USERS );
+        runner.enqueue( "{\"users\":[{\"pk\":1,\"full_name\":\"Kana Nia\",\"username\":\"kana\"}]}" );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.ORIGINAL_RELATIONSHIP, 3 );
+        runner.assertTransferCount( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP, 3 );
+        runner.assertTransferCount( KaNiaFiExtractUser.DUPLICATE_RELATIONSHIP, 2 );
+        runner.getFlowFilesForRelationship( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP ).get( 2 ).assertContentEquals( "{\"pk\":1,\"full_name\":\"Kana Nia\",\"username\":\"kana\"}" );
+    }
+
+    @Test
+    public void testDeduplicationRollback() {
+        runner.setProperty( KaNiaFiExtractUser.DEDUPLICATION_PROPERTY, KaNiaFiExtractUser.DEDUPLICATION_KEY_CONTENT );
+        runner.enqueue( USERS );
+        KaNiaFiExtractUser processor = ( KaNiaFiExtractUser ) runner.getProcessor();
+        processor.onScheduled( runner.getProcessContext() );
+        ProcessSession session = runner.getProcessSessionFactory().createSession();
+        ProcessSession failing = ( ProcessSession ) Proxy.newProxyInstance( getClass().getClassLoader(), new Class<?>[]{ ProcessSession.class }, ( proxy, method, arguments ) -> 
+            method.getName().equals( "commitAsync" ) ? null : method.invoke( session, arguments ) );
+        processor.onTrigger( runner.getProcessContext(), failing );
+        runner.enqueue( USERS );
+        runner.run( 1, true, false );
+        runner.assertTransferCount( KaNiaFiExtractUser.DUPLICATE_RELATIONSHIP, 0 );
+    }
+
+    @Test
+    public void testNested() {
+        runner.enqueue( "{\"user\":{\"pk\":1,\"full_name\":\"Kana\",\"username\":\"kana\",\"friends\":[{\"id\":\"2\",\"full_name\":\"Nia\",\"username\":\"nia\"}]}}" );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.ORIGINAL_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP, 2 );
+        runner.getFlowFilesForRelationship( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP ).get( 1 ).assertContentEquals( "{\"id\":\"2\",\"full_name\":\"Nia\",\"username\":\"nia\"}" );
+    }
+
+    @Test
+    public void testSchemeRegistry() throws Exception {
+        KaNiaFiSchemeHolder holder = new KaNiaFiSchemeHolder( Paths.get( getClass().getResource( "/schemes/scheme.json" ).toURI() ).toString(), -1, runner.getLogger() );
+        Registry service = new Registry( holder );
+        runner.addControllerService( "registry", service );
+        runner.enableControllerService( service );
+        runner.setProperty( KaNiaFiExtractUser.SCHEME_REGISTRY_PROPERTY, "registry" );
+        runner.removeProperty( KaNiaFiExtractUser.SCHEME_SOURCE_PROPERTY );
+        runner.enqueue( USERS );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.ORIGINAL_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP, 2 );
+        TestRunner branching = TestRunners.newTestRunner( KaNiaFiBranching.class );
+        branching.addControllerService( "registry", service );
+        branching.enableControllerService( service );
+        branching.setProperty( KaNiaFiBranching.SCHEME_REGISTRY_PROPERTY, "registry" );
+        branching.enqueue( KaNiaFiBranchingTest.USER );
+        branching.run( 1 );
+        branching.assertTransferCount( KaNiaFiBranching.USER_RELATIONSHIP, 1 );
+        assertEquals( 1, holder.get().version() );
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        runner.setProperty( KaNiaFiExtractUser.EXTRACTION_MODE_PROPERTY, KaNiaFiExtractUser.EXTRACTION_MODE_STREAMING );
+        runner.setProperty( KaNiaFiExtractUser.TRANSFER_TYPE_PROPERTY, "Array" );
+        runner.enqueue( "{\"user\":{\"pk\":1,\"full_name\":\"Kana\",\"username\":\"kana\",\"friends\":[{\"id\":\"2\",\"full_name\":\"Nia\",\"username\":\"nia\"}]},\"items\":[[{\"pk\":3,\"full_name\":\"Fi\",\"username\":\"fi\"}]]}" );
+        runner.enqueue( "{\"status\":\"ok\",\"users\":[]}" );
+        runner.enqueue( "{\"users\":[{\"pk\":1," );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.ORIGINAL_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.NONE_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.FAILURE_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP, 1 );
+        JsonNode users = KaNiaFi.objectMapper.readTree( runner.getFlowFilesForRelationship( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP ).get( 0 ).getContent() );
+        assertEquals( 3, users.size() );
+        assertEquals( "nia", users.get( 1 ).get( "username" ).asText() );
+        assertEquals( "fi", users.get( 2 ).get( "username" ).asText() );
+    }
+
+    @Test
+    public void testObject() {
+        runner.enqueue( USERS );
+        runner.enqueue( "{\"status\":\"ok\"}" );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.ORIGINAL_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.NONE_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP, 2 );
+    }
+
+    public static class Registry extends AbstractControllerService implements KaNiaFiSchemaRegistry {
+
+        private final KaNiaFiSchemeHolder holder;
+
+        public Registry( KaNiaFiSchemeHolder holder ) {
+            this.holder = holder;
+        }
+
+        @Override
+        public String getDigest() throws IOException {
+            return holder.get().digest();
+        }
+
+        @Override
+        public KaNiaFiSchemaSnapshot getSnapshot() throws IOException {
+            KaNiaFiScheme scheme = holder.get();
+            return new KaNiaFiSchemaSnapshot( scheme.digest(), Files.readAllBytes( holder.source() ), scheme.version() );
+        }
+
+        @Override
+        public String getSource() {
+            return holder.source().toString();
+        }
+
+        @Override
+        public String resolve( String id, String digest ) throws IOException {
+            for( KaNiaFiScheme.Entry entry : holder.get().entries() ) {
+                if( entry.name().equals( id ) && entry.digest().equals( digest ) ) {
+                    return entry.scheme().toString();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean validate( String id, String digest, String node ) throws IOException {
+            KaNiaFiScheme scheme = holder.get();
+            for( KaNiaFiScheme.Entry entry : scheme.entries() ) {
+                if( entry.name().equals( id ) && entry.digest().equals( digest ) ) {
+                    return scheme.validate( entry, KaNiaFi.objectMapper.readTree( node ) );
+                }
+            }
+            throw new IOException( id + " " + digest );
+        }
+
+    }
+
+}
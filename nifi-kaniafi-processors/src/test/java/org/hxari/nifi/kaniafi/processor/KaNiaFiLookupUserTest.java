@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.processor;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.hxari.nifi.kaniafi.service.KaNiaFiUserCache;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class KaNiaFiLookupUserTest {
+
+    @Test
+    public void testLookup() throws Exception {
+        Cache cache = new Cache();
+        TestRunner extract = TestRunners.newTestRunner( KaNiaFiExtractUser.class );
+        extract.addControllerService( "cache", cache );
+        extract.enableControllerService( cache );
+        extract.setProperty( KaNiaFiExtractUser.SCHEME_SOURCE_PROPERTY, Paths.get( getClass().getResource( "/schemes/scheme.json" ).toURI() ).toString() );
+        extract.setProperty( KaNiaFiExtractUser.USER_CACHE_PROPERTY, "cache" );
+        extract.setProperty( KaNiaFiExtractUser.EXTRACTION_MODE_PROPERTY, KaNiaFiExtractUser.EXTRACTION_MODE_STREAMING );
+        extract.enqueue( KaNiaFiExtractUserTest.USERS );
+        extract.enqueue( "{\"users\":[{\"pk\":3,\"full_name\":\"Fi\",\"username\":\"fi\"},{\"pk\":" );
+        extract.run( 1 );
+        extract.assertTransferCount( KaNiaFiExtractUser.SUCCESS_RELATIONSHIP, 2 );
+        extract.assertTransferCount( KaNiaFiExtractUser.FAILURE_RELATIONSHIP, 1 );
+        assertEquals( 2, cache.size() );
+
+        TestRunner lookup = TestRunners.newTestRunner( KaNiaFiLookupUser.class );
+        lookup.addControllerService( "cache", cache );
+        lookup.enableControllerService( cache );
+        lookup.setProperty( KaNiaFiLookupUser.USER_CACHE_PROPERTY, "cache" );
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put( "user.pk", "2" );
+        lookup.enqueue( "", attributes );
+        attributes.put( "user.pk", "3" );
+        lookup.enqueue( "", attributes );
+        lookup.enqueue( "" );
+        lookup.run( 1 );
+        lookup.assertTransferCount( KaNiaFiLookupUser.MATCHED_RELATIONSHIP, 1 );
+        lookup.assertTransferCount( KaNiaFiLookupUser.UNMATCHED_RELATIONSHIP, 1 );
+        lookup.assertTransferCount( KaNiaFiLookupUser.FAILURE_RELATIONSHIP, 1 );
+        lookup.getFlowFilesForRelationship( KaNiaFiLookupUser.MATCHED_RELATIONSHIP ).get( 0 ).assertAttributeEquals( "user.record", "{\"pk\":2,\"full_name\":\"Nia\",\"username\":\"nia\"}" );
+    }
+
+    public static class Cache extends AbstractControllerService implements KaNiaFiUserCache {
+
+        private final Map<Long, byte[]> records = new ConcurrentHashMap<>();
+
+        @Override
+        public byte[] get( long pk ) {
+            return records.get( pk );
+        }
+
+        @Override
+        public boolean put( long pk, byte[] record ) {
+            records.put( pk, record );
+            return true;
+        }
+
+        @Override
+        public long size() {
+            return records.size();
+        }
+
+    }
+
+}
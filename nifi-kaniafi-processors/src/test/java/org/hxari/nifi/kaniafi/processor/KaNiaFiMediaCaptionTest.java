@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.processor;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class KaNiaFiMediaCaptionTest {
+
+    final public static String MEDIA = "{\"items\":[{\"pk\":1,\"caption\":{\"pk\":\"11\",\"user\":{\"pk\":2,\"caption\":{\"text\":\"nested\"}},\"text\":\"Hello @kana. #NiFi #2024 #日本 mail kana@nia.fi &#38; see https://nia.fi/a_(b). and www.kana.fi!\",\"media_id\":1}},{\"pk\":2,\"caption\":null},{\"pk\":3,\"caption\":{\"pk\":12,\"text\":\"no tokens\"}}],\"status\":\"ok\"}";
+
+    private TestRunner runner;
+
+    @BeforeEach
+    public void init() {
+        runner = TestRunners.newTestRunner( KaNiaFiMediaCaption.class );
+    }
+
+    @Test
+    public void testScanner() throws Exception {
+        List<String> tokens = new ArrayList<>();
+        char[] text = "@kana_nia.fi, #夏 #__ @toolongmentiontoolongmentiontoolong http://x.fi/?q=1; (see https://nia.fi/a)".toCharArray();
+        int count = KaNiaFiCaptionScanner.scan( text, 0, text.length, ( kind, chars, offset, length ) -> tokens.add( kind + ":" + new String( chars, offset, length ) ) );
+        assertEquals( 4, count );
+        assertEquals( List.of( "1:kana_nia.fi", "0:夏", "2:http://x.fi/?q=1", "2:https://nia.fi/a" ), tokens );
+    }
+
+    @Test
+    public void testNdjson() throws Exception {
+        runner.enqueue( MEDIA );
+        runner.enqueue( "{\"items\":[]}" );
+        runner.enqueue( "{\"caption\":{\"text\":" );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiMediaCaption.ORIGINAL_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiMediaCaption.NONE_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiMediaCaption.FAILURE_RELATIONSHIP, 1 );
+        runner.assertTransferCount( KaNiaFiMediaCaption.SUCCESS_RELATIONSHIP, 1 );
+        MockFlowFile captions = runner.getFlowFilesForRelationship( KaNiaFiMediaCaption.SUCCESS_RELATIONSHIP ).get( 0 );
+        captions.assertAttributeEquals( "record.count", "2" );
+        String[] lines = captions.getContent().split( "\n" );
+        assertEquals( 2, lines.length );
+        JsonNode caption = KaNiaFi.objectMapper.readTree( lines[0] );
+        assertEquals( "11", caption.get( "pk" ).asText() );
+        assertEquals( "1", caption.get( "media_id" ).asText() );
+        assertEquals( "[\"NiFi\",\"日本\"]", caption.get( "hashtags" ).toString() );
+        assertEquals( "[\"kana\"]", caption.get( "mentions" ).toString() );
+        assertEquals( "[\"https://nia.fi/a_(b)\",\"www.kana.fi\"]", caption.get( "urls" ).toString() );
+        assertEquals( 3, runner.getCounterValue( "Caption URLs" ) + runner.getCounterValue( "Caption Mentions" ) );
+    }
+
+    @Test
+    public void testAttributes() {
+        runner.setProperty( KaNiaFiMediaCaption.OUTPUT_FORMAT_PROPERTY, KaNiaFiMediaCaption.OUTPUT_FORMAT_ATTRIBUTES );
+        runner.enqueue( MEDIA );
+        runner.run( 1 );
+        runner.assertAllFlowFilesTransferred( KaNiaFiMediaCaption.SUCCESS_RELATIONSHIP, 1 );
+        MockFlowFile media = runner.getFlowFilesForRelationship( KaNiaFiMediaCaption.SUCCESS_RELATIONSHIP ).get( 0 );
+        media.assertContentEquals( MEDIA );
+        media.assertAttributeEquals( "caption.count", "2" );
+        media.assertAttributeEquals( "caption.hashtags", "NiFi,日本" );
+        media.assertAttributeEquals( "caption.mentions", "kana" );
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.processor;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KaNiaFiSchemeTest {
+
+    final public static int ITERATIONS = 2000;
+
+    private KaNiaFiScheme scheme;
+    private KaNiaFiScheme.Entry entry;
+    private JsonNode user;
+
+    @BeforeEach
+    public void init() throws Exception {
+        scheme = KaNiaFiScheme.compile( getClass().getResourceAsStream( "/schemes/scheme.json" ).readAllBytes(), 1 );
+        for( KaNiaFiScheme.Entry candidate : scheme.entries() ) {
+            if( candidate.name().equals( "user" ) ) {
+                entry = candidate;
+            }
+        }
+        user = KaNiaFi.objectMapper.readTree( KaNiaFiBranchingTest.USER );
+    }
+
+    @Test
+    public void testDeterministicUri() throws Exception {
+        KaNiaFiScheme other = KaNiaFiScheme.compile( getClass().getResourceAsStream( "/schemes/scheme.json" ).readAllBytes(), 2 );
+        assertEquals( entry.uri(), other.entries().get( entry.index() ).uri() );
+    }
+
+    @Test
+    public void testContention() throws Exception {
+        JsonNode unknown = KaNiaFi.objectMapper.readTree( KaNiaFiBranchingTest.UNKNOWN );
+        ExecutorService executor = Executors.newFixedThreadPool( 16 );
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for( int i = 0; i < 16; i++ ) {
+                futures.add( executor.submit( () -> {
+                    boolean correct = true;
+                    for( int j = 0; j < ITERATIONS / 4; j++ ) {
+                        correct &= scheme.validate( entry, user );
+                        correct &= scheme.validate( entry, unknown ) == false;
+                    }
+                    return correct;
+                }));
+            }
+            for( Future<Boolean> future : futures ) {
+                assertTrue( future.get() );
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
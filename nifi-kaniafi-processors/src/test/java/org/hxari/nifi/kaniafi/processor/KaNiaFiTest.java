@@ -19,6 +19,8 @@ package org.hxari.nifi.kaniafi.processor;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 public class KaNiaFiTest {
 
     @BeforeEach
@@ -29,4 +31,10 @@ public class KaNiaFiTest {
     public void testProcessor() {
     }
 
+    @Test
+    public void testNormalizeUnixTimestamp() {
+        assertEquals( "2023-11-15T07:13:20", KaNiaFi.normalizeUnixTimestamp( 1700000000 ) );
+        assertEquals( "2023-11-14T22:13:20", KaNiaFi.normalizeUnixTimestamp( 1700000000.5, KaNiaFi.DATETIME_FORMAT, "UTC" ) );
+    }
+
 }
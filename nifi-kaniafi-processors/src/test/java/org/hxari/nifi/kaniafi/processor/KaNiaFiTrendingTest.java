@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.processor;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class KaNiaFiTrendingTest {
+
+    final public static String MEDIA = "{\"items\":[{\"caption\":{\"text\":\"#NiFi #kana @nia\"}},{\"caption\":{\"text\":\"#nifi\"}}]}";
+
+    private TestRunner runner;
+
+    @BeforeEach
+    public void init() {
+        runner = TestRunners.newTestRunner( KaNiaFiTrending.class );
+    }
+
+    @Test
+    public void testSketch() {
+        KaNiaFiSketch sketch = new KaNiaFiSketch( 4, 64, 2 );
+        for( String key : new String[]{ "a", "b", "A", "c", "b", "a" } ) {
+            sketch.add( key.toCharArray(), 0, 1 );
+        }
+        List<KaNiaFiSketch.Item> top = sketch.top();
+        assertEquals( 2, top.size() );
+        assertEquals( "a", top.get( 0 ).key() );
+        assertEquals( 3.0, top.get( 0 ).count() );
+        assertEquals( "b", top.get( 1 ).key() );
+        KaNiaFiSketch restored = new KaNiaFiSketch( 4, 64, 2 );
+        restored.restore( "Kana", 0.25 );
+        assertEquals( "kana", restored.top().get( 0 ).key() );
+        assertEquals( 0.25, restored.top().get( 0 ).count() );
+    }
+
+    @Test
+    public void testStopped() throws Exception {
+        runner.enqueue( MEDIA );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiTrending.SUMMARY_RELATIONSHIP, 0 );
+        Map<String, String> state = runner.getStateManager().getState( Scope.LOCAL ).toMap();
+        assertEquals( "2", state.get( "captions" ) );
+        assertEquals( 2.0, KaNiaFi.objectMapper.readTree( state.get( "hashtags" ) ).get( "nifi" ).asDouble() );
+        runner.setProperty( KaNiaFiTrending.TRENDING_WINDOW_PROPERTY, "0 sec" );
+        runner.enqueue( MEDIA );
+        runner.run( 1 );
+        JsonNode summaryNode = KaNiaFi.objectMapper.readTree( runner.getFlowFilesForRelationship( KaNiaFiTrending.SUMMARY_RELATIONSHIP ).get( 0 ).getContent() );
+        assertEquals( 4, summaryNode.get( "captions" ).asInt() );
+        assertEquals( 4.0, summaryNode.get( "hashtags" ).get( 0 ).get( "count" ).asDouble() );
+    }
+
+    @Test
+    public void testSummary() throws Exception {
+        runner.setProperty( KaNiaFiTrending.TRENDING_WINDOW_PROPERTY, "0 sec" );
+        runner.enqueue( MEDIA );
+        runner.enqueue( MEDIA );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiTrending.ORIGINAL_RELATIONSHIP, 2 );
+        runner.assertTransferCount( KaNiaFiTrending.SUMMARY_RELATIONSHIP, 1 );
+        MockFlowFile summary = runner.getFlowFilesForRelationship( KaNiaFiTrending.SUMMARY_RELATIONSHIP ).get( 0 );
+        JsonNode summaryNode = KaNiaFi.objectMapper.readTree( summary.getContent() );
+        assertEquals( 4, summaryNode.get( "captions" ).asInt() );
+        assertEquals( "nifi", summaryNode.get( "hashtags" ).get( 0 ).get( "key" ).asText() );
+        assertEquals( 4.0, summaryNode.get( "hashtags" ).get( 0 ).get( "count" ).asDouble() );
+        assertEquals( "nia", summaryNode.get( "mentions" ).get( 0 ).get( "key" ).asText() );
+        assertEquals( 2.0, KaNiaFi.objectMapper.readTree( runner.getStateManager().getState( Scope.LOCAL ).get( "hashtags" ) ).get( "nifi" ).asDouble() );
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        runner.setProperty( KaNiaFiTrending.TRENDING_WINDOW_PROPERTY, "0 sec" );
+        runner.enqueue( MEDIA );
+        KaNiaFiTrending processor = ( KaNiaFiTrending ) runner.getProcessor();
+        processor.onScheduled( runner.getProcessContext() );
+        ProcessSession session = runner.getProcessSessionFactory().createSession();
+        ProcessSession failing = ( ProcessSession ) Proxy.newProxyInstance( getClass().getClassLoader(), new Class<?>[]{ ProcessSession.class }, ( proxy, method, arguments ) -> 
+            method.getName().equals( "commitAsync" ) ? null : method.invoke( session, arguments ) );
+        processor.onTrigger( runner.getProcessContext(), failing );
+        session.rollback();
+        assertNull( runner.getStateManager().getState( Scope.LOCAL ).get( "window.start" ) );
+        runner.run( 1, true, false );
+        runner.assertTransferCount( KaNiaFiTrending.SUMMARY_RELATIONSHIP, 1 );
+        JsonNode summaryNode = KaNiaFi.objectMapper.readTree( runner.getFlowFilesForRelationship( KaNiaFiTrending.SUMMARY_RELATIONSHIP ).get( 0 ).getContent() );
+        assertEquals( summaryNode.get( "window_end" ).asText(), runner.getStateManager().getState( Scope.LOCAL ).get( "window.start" ) );
+        assertEquals( summaryNode.get( "hashtags" ).get( 0 ).get( "count" ).asDouble() / 2, KaNiaFi.objectMapper.readTree( runner.getStateManager().getState( Scope.LOCAL ).get( "hashtags" ) ).get( "nifi" ).asDouble() );
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        Map<String, String> state = new HashMap<>();
+        state.put( "window.start", "0" );
+        state.put( "hashtags", "{\"kana\":4.0}" );
+        runner.getStateManager().setState( state, Scope.LOCAL );
+        runner.enqueue( MEDIA );
+        runner.run( 1 );
+        runner.assertTransferCount( KaNiaFiTrending.SUMMARY_RELATIONSHIP, 1 );
+        JsonNode summaryNode = KaNiaFi.objectMapper.readTree( runner.getFlowFilesForRelationship( KaNiaFiTrending.SUMMARY_RELATIONSHIP ).get( 0 ).getContent() );
+        assertEquals( "kana", summaryNode.get( "hashtags" ).get( 0 ).get( "key" ).asText() );
+        assertEquals( 5.0, summaryNode.get( "hashtags" ).get( 0 ).get( "count" ).asDouble() );
+        runner.getFlowFilesForRelationship( KaNiaFiTrending.SUMMARY_RELATIONSHIP ).get( 0 ).assertAttributeEquals( "window.start", "0" );
+    }
+
+}
@@ -0,0 +1,295 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.scheme;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dev.harrel.jsonschema.InvalidSchemaException;
+import dev.harrel.jsonschema.Validator;
+import dev.harrel.jsonschema.ValidatorFactory;
+
+/**
+ * Immutable, compiled version of a Scheme Source, shared by the KaNiaFi
+ * processors and the KaNiaFiSchemaRegistry service.
+ *
+ * A scheme source is either a list of { "type", "scheme" } entries such as
+ * scheme.json, or a single JSON Scheme such as scheme-user.json which is
+ * compiled into one entry. Entries of a list which are not valid JSON
+ * Scheme are left out and reported by {@link #invalid()}.
+ *
+ * Every entry is digested as the SHA-256 of its serialized JSON Scheme, so
+ * an entry is addressed by its name and digest from either side, and is
+ * registered under a deterministic URI. Every validation borrows a Validator
+ * from a bounded pool of the compiled version and returns it afterwards,
+ * because a Validator keeps mutable registration state and is not
+ * documented as safe for concurrent use. The pool is dropped together with
+ * a replaced version, so pooled worker threads keep no validators of old
+ * versions alive.
+ */
+public class KaNiaFiCompiledScheme {
+
+	public static class Entry {
+
+		private final String digest;
+		private final int index;
+		private final String name;
+		private final JsonNode scheme;
+		private final URI uri;
+
+		protected Entry( Entry entry ) {
+			this.digest = entry.digest;
+			this.index = entry.index;
+			this.name = entry.name;
+			this.scheme = entry.scheme;
+			this.uri = entry.uri;
+		}
+
+		private Entry( int index, String name, JsonNode scheme ) throws IOException {
+			this.digest = KaNiaFiCompiledScheme.digest( objectMapper.writeValueAsBytes( scheme ) );
+			this.index = index;
+			this.name = name;
+			this.scheme = scheme;
+			this.uri = URI.create( "urn:kaniafi:scheme:" + index + ":" + this.digest );
+		}
+
+		public String digest() {
+			return this.digest;
+		}
+
+		public int index() {
+			return this.index;
+		}
+
+		public String name() {
+			return this.name;
+		}
+
+		public JsonNode scheme() {
+			return this.scheme;
+		}
+
+		public URI uri() {
+			return this.uri;
+		}
+
+	}
+
+	private static final ObjectMapper objectMapper = new ObjectMapper();
+	static final int POOL_SIZE = Math.max( 4, Runtime.getRuntime().availableProcessors() * 2 );
+
+	private final String digest;
+	private final List<Entry> entries;
+	private final AtomicInteger idle = new AtomicInteger();
+	private final List<String> invalid;
+	private final byte[] source;
+	private final Queue<Validator> validators;
+	private final long version;
+
+	private KaNiaFiCompiledScheme( long version, byte[] source, List<Entry> entries, List<String> invalid, Validator validator ) {
+		this.digest = digest( source );
+		this.entries = Collections.unmodifiableList( entries );
+		this.invalid = Collections.unmodifiableList( invalid );
+		this.source = source;
+		this.validators = validator != null ? new ConcurrentLinkedQueue<>() : null;
+		this.version = version;
+		if( validator != null ) {
+			this.release( validator );
+		}
+	}
+
+	/**
+	 * Compiles every entry of source and registers them with the first
+	 * Validator of the pool.
+	 */
+	public static KaNiaFiCompiledScheme compile( byte[] source, long version ) throws IOException {
+		return read( source, version, new ValidatorFactory().createValidator() );
+	}
+
+	/**
+	 * Reads the entries of source without registering them, for a caller
+	 * which only classifies and leaves the validation to whoever compiled
+	 * the same source. Invalid entries are not detected and such a version
+	 * cannot {@link #validate}.
+	 */
+	public static KaNiaFiCompiledScheme parse( byte[] source, long version ) throws IOException {
+		return read( source, version, null );
+	}
+
+	private static KaNiaFiCompiledScheme read( byte[] source, long version, Validator validator ) throws IOException {
+		JsonNode rootNode = objectMapper.readTree( source );
+		if( rootNode == null || rootNode.isMissingNode() ) {
+			throw new IOException( "Scheme source is empty" );
+		}
+		List<Entry> entries = new ArrayList<>();
+		List<String> invalid = new ArrayList<>();
+		if( rootNode.isArray() ) {
+			for( JsonNode node : rootNode ) {
+				String name = node.path( "type" ).asText();
+				JsonNode schemeNode = node.get( "scheme" );
+				if( schemeNode == null ) {
+					invalid.add( name );
+					continue;
+				}
+				try {
+					entries.add( entry( validator, entries.size(), name, schemeNode ) );
+				}
+				catch( InvalidSchemaException e ) {
+					invalid.add( name );
+				}
+			}
+		}
+		else {
+			try {
+				entries.add( entry( validator, 0, rootNode.path( "type" ).asText(), rootNode ) );
+			}
+			catch( InvalidSchemaException e ) {
+				throw new IOException( "Scheme source is not a valid JSON Scheme", e );
+			}
+		}
+		return new KaNiaFiCompiledScheme( version, source, entries, invalid, validator );
+	}
+
+	public static String digest( byte[] source ) {
+		try {
+			byte[] hash = MessageDigest.getInstance( "SHA-256" ).digest( source );
+			StringBuilder builder = new StringBuilder( hash.length * 2 );
+			for( byte b : hash ) {
+				builder.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) );
+				builder.append( Character.forDigit( b & 0xf, 16 ) );
+			}
+			return builder.toString();
+		}
+		catch( NoSuchAlgorithmException e ) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+	public String digest() {
+		return this.digest;
+	}
+
+	public List<Entry> entries() {
+		return this.entries;
+	}
+
+	private static Entry entry( Validator validator, int index, String name, JsonNode scheme ) throws IOException {
+		Entry entry = new Entry( index, name, scheme );
+		if( validator != null ) {
+			validator.registerSchema( entry.uri, scheme );
+		}
+		return entry;
+	}
+
+	/**
+	 * Entry named id whose digest is digest, or null.
+	 */
+	public Entry entry( String id, String digest ) {
+		for( Entry entry : this.entries ) {
+			if( entry.name.equals( id ) && entry.digest.equals( digest ) ) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	public List<String> invalid() {
+		return this.invalid;
+	}
+
+	/**
+	 * Takes a Validator out of the pool, or registers a new one when every
+	 * pooled Validator is in use, so concurrent callers never share one.
+	 */
+	Validator borrow() {
+		Validator validator = this.validators.poll();
+		if( validator != null ) {
+			this.idle.decrementAndGet();
+			return validator;
+		}
+		return this.validator();
+	}
+
+	/**
+	 * Number of Validators waiting in the pool.
+	 */
+	int idle() {
+		return this.idle.get();
+	}
+
+	/**
+	 * Returns a borrowed Validator to the pool, or drops it when the pool
+	 * already holds {@link #POOL_SIZE} of them.
+	 */
+	void release( Validator validator ) {
+		if( this.idle.incrementAndGet() <= POOL_SIZE ) {
+			this.validators.offer( validator );
+		}
+		else {
+			this.idle.decrementAndGet();
+		}
+	}
+
+	public byte[] source() {
+		return this.source.clone();
+	}
+
+	public boolean validate( Entry entry, JsonNode node ) {
+		if( this.validators == null ) {
+			throw new IllegalStateException( "Scheme version " + this.version + " is parsed only" );
+		}
+		Validator validator = this.borrow();
+		try {
+			return validator.validate( entry.uri, node ).isValid();
+		}
+		finally {
+			this.release( validator );
+		}
+	}
+
+	/**
+	 * Validates a serialized JSON node, as handed over by callers which do
+	 * not share a JSON library with this version.
+	 */
+	public boolean validate( Entry entry, String node ) throws IOException {
+		return this.validate( entry, objectMapper.readTree( node ) );
+	}
+
+	private Validator validator() {
+		Validator validator = new ValidatorFactory().createValidator();
+		for( Entry entry : this.entries ) {
+			validator.registerSchema( entry.uri, entry.scheme );
+		}
+		return validator;
+	}
+
+	public long version() {
+		return this.version;
+	}
+
+}
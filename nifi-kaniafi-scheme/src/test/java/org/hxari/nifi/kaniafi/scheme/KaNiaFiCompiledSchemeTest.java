@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.scheme;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import dev.harrel.jsonschema.Validator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KaNiaFiCompiledSchemeTest {
+
+    final public static String SCHEME = "[{\"type\":\"user\",\"scheme\":{\"type\":\"object\",\"required\":[\"pk\",\"username\"]}}]";
+
+    private KaNiaFiCompiledScheme scheme;
+
+    @BeforeEach
+    public void init() throws Exception {
+        scheme = KaNiaFiCompiledScheme.compile( SCHEME.getBytes( StandardCharsets.UTF_8 ), 1 );
+    }
+
+    @Test
+    public void testPool() throws Exception {
+        int threads = KaNiaFiCompiledScheme.POOL_SIZE + 2;
+        Set<Validator> borrowed = Collections.synchronizedSet( Collections.newSetFromMap( new IdentityHashMap<>() ) );
+        CyclicBarrier held = new CyclicBarrier( threads );
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for( int i = 0; i < threads; i++ ) {
+                futures.add( executor.submit( () -> {
+                    Validator validator = scheme.borrow();
+                    borrowed.add( validator );
+                    held.await();
+                    int idle = scheme.idle();
+                    held.await();
+                    scheme.release( validator );
+                    return idle;
+                }));
+            }
+            for( Future<Integer> future : futures ) {
+                assertEquals( 0, future.get() );
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        assertEquals( threads, borrowed.size() );
+        assertEquals( KaNiaFiCompiledScheme.POOL_SIZE, scheme.idle() );
+        for( Validator validator : borrowed ) {
+            scheme.release( validator );
+        }
+        assertEquals( KaNiaFiCompiledScheme.POOL_SIZE, scheme.idle() );
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        KaNiaFiCompiledScheme parsed = KaNiaFiCompiledScheme.parse( SCHEME.getBytes( StandardCharsets.UTF_8 ), 1 );
+        assertEquals( scheme.digest(), parsed.digest() );
+        assertEquals( scheme.entries().get( 0 ).uri(), parsed.entries().get( 0 ).uri() );
+        assertEquals( 0, parsed.idle() );
+        assertTrue( scheme.validate( scheme.entries().get( 0 ), "{\"pk\":1,\"username\":\"kana\"}" ) );
+        assertFalse( scheme.validate( scheme.entries().get( 0 ), "{\"pk\":1}" ) );
+    }
+
+}
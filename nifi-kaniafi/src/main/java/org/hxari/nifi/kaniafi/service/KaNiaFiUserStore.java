@@ -0,0 +1,336 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-mapped store of the latest record of every user primary key.
+ *
+ * Records are appended to a circular data log and located through an open
+ * addressing index of fixed slots, both mapped from files in the directory
+ * so neither the records nor the index live on the Java heap and a store
+ * reopened with the same layout keeps its content. When the log or the
+ * index is full the oldest record is evicted, unless it was read since it
+ * was written, in which case it is written again at the head once and its
+ * reference bit cleared (FIFO with reinsertion).
+ *
+ * Every index slot is checked against the record header it points to, so
+ * a slot left behind by a crash between two writes reads as a miss.
+ */
+public final class KaNiaFiUserStore implements Closeable {
+
+	private static final int MAGIC = 0x4b4e4655;
+	private static final int HEADER = 64;
+	private static final int RECORD = 12;
+	private static final int PADDING = -1;
+	private static final int SLOT = 24;
+	private static final long SEGMENT = 1L << 30;
+
+	private static final int USED = 1;
+	private static final int REFERENCED = 2;
+
+	private final long capacity;
+	private int count;
+	private long head;
+	private final MappedByteBuffer index;
+	private final FileChannel indexChannel;
+	private final int limit;
+	private final FileLock lock;
+	private final FileChannel logChannel;
+	private final int mask;
+	private final MappedByteBuffer[] segments;
+	private final long segment;
+	private long tail;
+
+	public KaNiaFiUserStore( Path directory, int entries, long capacity ) throws IOException {
+		int slots = Integer.highestOneBit( Math.max( 16, ( int ) Math.min( 1 << 26, entries * 4L / 3 + 1 ) ) - 1 ) << 1;
+		this.limit = Math.min( entries, slots / 4 * 3 );
+		this.mask = slots - 1;
+		this.segment = Math.min( Math.max( capacity, 1 << 16 ), SEGMENT );
+		this.capacity = ( Math.max( capacity, 1 << 16 ) + this.segment - 1 ) / this.segment * this.segment;
+		Files.createDirectories( directory );
+		Path indexPath = directory.resolve( "users.index" );
+		Path logPath = directory.resolve( "users.log" );
+		long indexSize = HEADER + ( long ) slots * SLOT;
+		boolean reuse = Files.exists( indexPath ) && Files.size( indexPath ) == indexSize && Files.exists( logPath ) && Files.size( logPath ) == this.capacity;
+		this.indexChannel = FileChannel.open( indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		this.lock = lock( this.indexChannel );
+		if( this.lock == null ) {
+			this.indexChannel.close();
+			throw new IOException( "User store " + directory + " is already in use" );
+		}
+		this.logChannel = FileChannel.open( logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		if( reuse == false ) {
+			this.indexChannel.truncate( 0 );
+			this.logChannel.truncate( 0 );
+		}
+		this.index = this.indexChannel.map( FileChannel.MapMode.READ_WRITE, 0, indexSize );
+		this.segments = new MappedByteBuffer[( int ) ( this.capacity / this.segment )];
+		for( int i = 0; i < this.segments.length; i++ ) {
+			this.segments[i] = this.logChannel.map( FileChannel.MapMode.READ_WRITE, i * this.segment, this.segment );
+		}
+		if( reuse && this.index.getInt( 0 ) == MAGIC && this.index.getInt( 4 ) == slots && this.index.getLong( 8 ) == this.capacity ) {
+			this.head = this.index.getLong( 16 );
+			this.tail = this.index.getLong( 24 );
+			this.count = this.index.getInt( 32 );
+		}
+		else {
+			if( reuse ) {
+				for( long i = 0; i < slots; i++ ) {
+					this.index.putInt( ( int ) ( HEADER + i * SLOT + 20 ), 0 );
+				}
+			}
+			this.index.putInt( 0, MAGIC );
+			this.index.putInt( 4, slots );
+			this.index.putLong( 8, this.capacity );
+			this.header();
+		}
+	}
+
+	private MappedByteBuffer buffer( long position ) {
+		return this.segments[( int ) ( position % this.capacity / this.segment )];
+	}
+
+	public long capacity() {
+		return this.capacity;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		this.header();
+		this.index.force();
+		for( MappedByteBuffer segment : this.segments ) {
+			segment.force();
+		}
+		this.lock.release();
+		this.logChannel.close();
+		this.indexChannel.close();
+	}
+
+	public synchronized int count() {
+		return this.count;
+	}
+
+	/**
+	 * Removes the slot with backward shift deletion, so probing never has
+	 * to step over tombstones.
+	 */
+	private void delete( int slot ) {
+		int hole = slot;
+		int next = ( hole + 1 ) & this.mask;
+		while( ( this.flags( next ) & USED ) != 0 ) {
+			int home = hash( this.key( next ) ) & this.mask;
+			if( ( ( next - home ) & this.mask ) >= ( ( next - hole ) & this.mask ) ) {
+				long from = HEADER + ( long ) next * SLOT;
+				long to = HEADER + ( long ) hole * SLOT;
+				this.index.putLong( ( int ) to, this.index.getLong( ( int ) from ) );
+				this.index.putLong( ( int ) to + 8, this.index.getLong( ( int ) from + 8 ) );
+				this.index.putLong( ( int ) to + 16, this.index.getLong( ( int ) from + 16 ) );
+				hole = next;
+			}
+			next = ( next + 1 ) & this.mask;
+		}
+		this.index.putInt( ( int ) ( HEADER + ( long ) hole * SLOT + 20 ), 0 );
+		this.count--;
+	}
+
+	/**
+	 * Drops or reinserts the record at the tail of the log and advances the
+	 * tail past it.
+	 */
+	private void evict() {
+		long position = this.tail;
+		int remaining = this.remaining( position );
+		MappedByteBuffer buffer = this.buffer( position );
+		int offset = this.offset( position );
+		if( remaining < RECORD || buffer.getInt( offset + 8 ) == PADDING ) {
+			this.tail += remaining;
+			return;
+		}
+		long pk = buffer.getLong( offset );
+		int length = buffer.getInt( offset + 8 );
+		this.tail += RECORD + length;
+		int slot = this.find( pk );
+		if( slot < 0 || this.position( slot ) != position ) {
+			return;
+		}
+		int flags = this.flags( slot );
+		if( ( flags & REFERENCED ) != 0 && this.required( RECORD + length ) <= this.free() ) {
+			// The target can only overlap the record from below, so a forward copy is safe
+			long target = this.reserve( RECORD + length );
+			MappedByteBuffer targetBuffer = this.buffer( target );
+			int targetOffset = this.offset( target );
+			for( int i = 0; i < RECORD + length; i++ ) {
+				targetBuffer.put( targetOffset + i, buffer.get( offset + i ) );
+			}
+			this.index.putLong( ( int ) ( HEADER + ( long ) slot * SLOT + 8 ), target );
+			this.index.putInt( ( int ) ( HEADER + ( long ) slot * SLOT + 20 ), USED );
+		}
+		else {
+			this.delete( slot );
+		}
+	}
+
+	private int find( long pk ) {
+		int slot = hash( pk ) & this.mask;
+		while( ( this.flags( slot ) & USED ) != 0 ) {
+			if( this.key( slot ) == pk ) {
+				return slot;
+			}
+			slot = ( slot + 1 ) & this.mask;
+		}
+		return -1 - slot;
+	}
+
+	private int flags( int slot ) {
+		return this.index.getInt( ( int ) ( HEADER + ( long ) slot * SLOT + 20 ) );
+	}
+
+	private long free() {
+		return this.capacity - ( this.head - this.tail );
+	}
+
+	public synchronized byte[] get( long pk ) {
+		int slot = this.find( pk );
+		if( slot < 0 ) {
+			return null;
+		}
+		long position = this.position( slot );
+		int length = this.index.getInt( ( int ) ( HEADER + ( long ) slot * SLOT + 16 ) );
+		MappedByteBuffer buffer = this.buffer( position );
+		int offset = this.offset( position );
+		if( position < this.tail || position >= this.head || buffer.getLong( offset ) != pk || buffer.getInt( offset + 8 ) != length ) {
+			this.delete( slot );
+			this.header();
+			return null;
+		}
+		this.index.putInt( ( int ) ( HEADER + ( long ) slot * SLOT + 20 ), USED | REFERENCED );
+		byte[] record = new byte[length];
+		buffer.get( offset + RECORD, record );
+		return record;
+	}
+
+	private static int hash( long pk ) {
+		pk ^= pk >>> 33;
+		pk *= 0xff51afd7ed558ccdL;
+		pk ^= pk >>> 33;
+		return ( int ) pk;
+	}
+
+	private void header() {
+		this.index.putLong( 16, this.head );
+		this.index.putLong( 24, this.tail );
+		this.index.putInt( 32, this.count );
+	}
+
+	private long key( int slot ) {
+		return this.index.getLong( ( int ) ( HEADER + ( long ) slot * SLOT ) );
+	}
+
+	public int limit() {
+		return this.limit;
+	}
+
+	/**
+	 * Locks the file against other processes, and returns null as well when
+	 * it is already locked by another store of this JVM.
+	 */
+	private static FileLock lock( FileChannel channel ) throws IOException {
+		try {
+			return channel.tryLock();
+		}
+		catch( OverlappingFileLockException e ) {
+			return null;
+		}
+	}
+
+	private int offset( long position ) {
+		return ( int ) ( position % this.capacity % this.segment );
+	}
+
+	private long position( int slot ) {
+		return this.index.getLong( ( int ) ( HEADER + ( long ) slot * SLOT + 8 ) );
+	}
+
+	/**
+	 * Appends record as the latest one of pk, evicting from the tail until
+	 * both the log and the index have room for it.
+	 */
+	public synchronized boolean put( long pk, byte[] record ) {
+		int size = RECORD + record.length;
+		if( size > this.segment / 2 ) {
+			return false;
+		}
+		// A reinsertion by evict() may move the head, so the room is checked again after every eviction
+		while( this.required( size ) > this.free() || ( this.find( pk ) < 0 && this.count >= this.limit && this.tail < this.head ) ) {
+			this.evict();
+		}
+		long position = this.reserve( size );
+		MappedByteBuffer buffer = this.buffer( position );
+		int offset = this.offset( position );
+		buffer.putLong( offset, pk );
+		buffer.putInt( offset + 8, record.length );
+		buffer.put( offset + RECORD, record );
+		int slot = this.find( pk );
+		if( slot < 0 ) {
+			slot = -1 - slot;
+			this.index.putLong( ( int ) ( HEADER + ( long ) slot * SLOT ), pk );
+			this.count++;
+		}
+		this.index.putLong( ( int ) ( HEADER + ( long ) slot * SLOT + 8 ), position );
+		this.index.putInt( ( int ) ( HEADER + ( long ) slot * SLOT + 16 ), record.length );
+		this.index.putInt( ( int ) ( HEADER + ( long ) slot * SLOT + 20 ), USED );
+		this.header();
+		return true;
+	}
+
+	private int remaining( long position ) {
+		return ( int ) ( this.segment - this.offset( position ) );
+	}
+
+	/**
+	 * Bytes taken from the free space by a record of size, including the
+	 * padding up to the next segment when it does not fit in this one.
+	 */
+	private long required( int size ) {
+		int remaining = this.remaining( this.head );
+		return remaining < size ? remaining + size : size;
+	}
+
+	private long reserve( int size ) {
+		int remaining = this.remaining( this.head );
+		if( remaining < size ) {
+			if( remaining >= RECORD ) {
+				this.buffer( this.head ).putInt( this.offset( this.head ) + 8, PADDING );
+			}
+			this.head += remaining;
+		}
+		long position = this.head;
+		this.head += size;
+		return position;
+	}
+
+}
@@ -0,0 +1,212 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.service;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+import org.hxari.nifi.kaniafi.scheme.KaNiaFiCompiledScheme;
+
+@Tags({ "instagram", "kanashī", "kaniafi", "registry", "scheme" })
+@CapabilityDescription( "Compile the Scheme Source once and share it with every processor referencing this service, the source is checked for changes every Scheme Reload Interval and validations borrow a validator from a bounded pool of the compiled version" )
+public class StandardKaNiaFiSchemaRegistry extends AbstractControllerService implements KaNiaFiSchemaRegistry {
+
+	public static final PropertyDescriptor SCHEME_SOURCE_PROPERTY = new PropertyDescriptor.Builder()
+		.name( "scheme.source" )
+		.displayName( "Scheme Source" )
+		.description( "Source of JSON Scheme for validate the FlowFile contents, you can download it from https://raw.githubusercontent.com/hxAri/KaNiaFi/main/nifi-kaniafi-processors/src/main/resources/schemes/scheme.json" )
+		.required( true )
+		.addValidator( StandardValidators.FILE_EXISTS_VALIDATOR )
+		.build();
+
+	public static final PropertyDescriptor SCHEME_RELOAD_INTERVAL_PROPERTY = new PropertyDescriptor.Builder()
+		.name( "scheme.reload.interval" )
+		.displayName( "Scheme Reload Interval" )
+		.description( "How often the Scheme Source is checked for changes, the compiled scheme is only replaced when the file content has changed" )
+		.required( true )
+		.defaultValue( "10 sec" )
+		.addValidator( StandardValidators.TIME_PERIOD_VALIDATOR )
+		.build();
+
+	/**
+	 * Number of replaced versions kept for validating FlowFiles classified
+	 * just before the Scheme Source changed.
+	 */
+	private static final int HISTORY = 4;
+
+	private static final List<PropertyDescriptor> properties;
+	static {
+		final List<PropertyDescriptor> props = new ArrayList<>();
+		props.add( SCHEME_SOURCE_PROPERTY );
+		props.add( SCHEME_RELOAD_INTERVAL_PROPERTY );
+		properties = Collections.unmodifiableList( props );
+	}
+
+	private final AtomicLong deadline = new AtomicLong();
+
+	private volatile long interval;
+	private volatile long modified = -1;
+	private volatile long size = -1;
+	private volatile Path source;
+
+	/**
+	 * Compiled versions of the Scheme Source, the current one first.
+	 */
+	private volatile List<KaNiaFiCompiledScheme> versions;
+
+	@Override
+	protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return properties;
+	}
+
+	@OnEnabled
+	public void onEnabled( final ConfigurationContext context ) throws InitializationException {
+		this.source = Paths.get( context.getProperty( SCHEME_SOURCE_PROPERTY ).getValue() );
+		this.interval = context.getProperty( SCHEME_RELOAD_INTERVAL_PROPERTY ).asTimePeriod( TimeUnit.NANOSECONDS );
+		this.modified = -1;
+		this.size = -1;
+		try {
+			this.refresh( Collections.emptyList() );
+		}
+		catch( IOException e ) {
+			throw new InitializationException( "Failed to compile Scheme " + this.source, e );
+		}
+		this.deadline.set( System.nanoTime() + this.interval );
+	}
+
+	@OnDisabled
+	public void shutdown() {
+		this.versions = null;
+	}
+
+	private KaNiaFiCompiledScheme current() {
+		List<KaNiaFiCompiledScheme> versions = this.versions();
+		long now = System.nanoTime();
+		long next = this.deadline.get();
+		if( now - next >= 0 && this.deadline.compareAndSet( next, now + this.interval ) ) {
+			try {
+				this.refresh( versions );
+			}
+			catch( IOException e ) {
+				getLogger().warn( "Failed to reload Scheme {}, keeping version {}", new Object[]{ this.source, versions.get( 0 ).version(), e } );
+			}
+			versions = this.versions();
+		}
+		return versions.get( 0 );
+	}
+
+	@Override
+	public String getDigest() {
+		return this.current().digest();
+	}
+
+	@Override
+	public KaNiaFiSchemaSnapshot getSnapshot() {
+		KaNiaFiCompiledScheme current = this.current();
+		return new KaNiaFiSchemaSnapshot( current.digest(), current.source(), current.version() );
+	}
+
+	@Override
+	public String getSource() {
+		return this.source.toString();
+	}
+
+	private synchronized void refresh( List<KaNiaFiCompiledScheme> versions ) throws IOException {
+		if( versions != this.versions && this.versions != null ) {
+			return;
+		}
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes( this.source, BasicFileAttributes.class );
+		}
+		catch( NoSuchFileException e ) {
+			throw new FileNotFoundException( this.source.toString() );
+		}
+		long modified = attributes.lastModifiedTime().toMillis();
+		long size = attributes.size();
+		KaNiaFiCompiledScheme current = versions.isEmpty() ? null : versions.get( 0 );
+		if( current != null && modified == this.modified && size == this.size ) {
+			return;
+		}
+		byte[] source = Files.readAllBytes( this.source );
+		if( current == null || !current.digest().equals( KaNiaFiCompiledScheme.digest( source ) ) ) {
+			KaNiaFiCompiledScheme compiled = KaNiaFiCompiledScheme.compile( source, current != null ? current.version() + 1 : 1 );
+			List<KaNiaFiCompiledScheme> replaced = new ArrayList<>( HISTORY + 1 );
+			replaced.add( compiled );
+			replaced.addAll( versions.subList( 0, Math.min( versions.size(), HISTORY ) ) );
+			this.versions = Collections.unmodifiableList( replaced );
+			getLogger().info( "Compiled Scheme {} version {} with {} entries", new Object[]{ this.source, compiled.version(), compiled.entries().size() } );
+			if( compiled.invalid().size() >= 1 ) {
+				getLogger().warn( "Skipped invalid Scheme entries {} in {}", new Object[]{ compiled.invalid(), this.source } );
+			}
+		}
+		this.modified = modified;
+		this.size = size;
+	}
+
+	@Override
+	public String resolve( String id, String digest ) {
+		this.current();
+		for( KaNiaFiCompiledScheme snapshot : this.versions() ) {
+			KaNiaFiCompiledScheme.Entry entry = snapshot.entry( id, digest );
+			if( entry != null ) {
+				return entry.scheme().toString();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean validate( String id, String digest, String node ) throws IOException {
+		this.current();
+		for( KaNiaFiCompiledScheme snapshot : this.versions() ) {
+			KaNiaFiCompiledScheme.Entry entry = snapshot.entry( id, digest );
+			if( entry != null ) {
+				return snapshot.validate( entry, node );
+			}
+		}
+		throw new IOException( "No recent version of Scheme " + this.source + " has entry " + id + " with digest " + digest );
+	}
+
+	private List<KaNiaFiCompiledScheme> versions() {
+		List<KaNiaFiCompiledScheme> versions = this.versions;
+		if( versions == null ) {
+			throw new IllegalStateException( "Scheme registry is not enabled" );
+		}
+		return versions;
+	}
+
+}
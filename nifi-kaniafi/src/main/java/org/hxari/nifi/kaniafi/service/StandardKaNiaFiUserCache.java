@@ -0,0 +1,134 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements.  See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License.  You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.hxari.nifi.kaniafi.service;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+
+@Tags({ "cache", "instagram", "kanashī", "kaniafi", "user" })
+@CapabilityDescription( "Keep the latest User Object of every primary key in memory-mapped files outside of the Java heap, the cache survives restarts as long as Cache Entries and Cache Size are unchanged, the oldest users are evicted first unless they were looked up since they were stored" )
+public class StandardKaNiaFiUserCache extends AbstractControllerService implements KaNiaFiUserCache {
+
+	public static final PropertyDescriptor CACHE_DIRECTORY_PROPERTY = new PropertyDescriptor.Builder()
+		.name( "cache.directory" )
+		.displayName( "Cache Directory" )
+		.description( "Directory of the users.index and users.log files, it is created when missing and must not be shared with another cache" )
+		.required( true )
+		.addValidator( StandardValidators.NON_EMPTY_VALIDATOR )
+		.build();
+
+	public static final PropertyDescriptor CACHE_ENTRIES_PROPERTY = new PropertyDescriptor.Builder()
+		.name( "cache.entries" )
+		.displayName( "Cache Entries" )
+		.description( "Maximum number of users cached, the index takes 32 bytes per entry and is capped at 50331648 entries" )
+		.required( true )
+		.defaultValue( "1000000" )
+		.addValidator( StandardValidators.POSITIVE_INTEGER_VALIDATOR )
+		.build();
+
+	public static final PropertyDescriptor CACHE_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+		.name( "cache.size" )
+		.displayName( "Cache Size" )
+		.description( "Size of the data log holding the User Objects, a single User Object larger than half of it, or of 512 MB, is not cached" )
+		.required( true )
+		.defaultValue( "1 GB" )
+		.addValidator( StandardValidators.DATA_SIZE_VALIDATOR )
+		.build();
+
+	private static final List<PropertyDescriptor> properties;
+	static {
+		final List<PropertyDescriptor> props = new ArrayList<>();
+		props.add( CACHE_DIRECTORY_PROPERTY );
+		props.add( CACHE_ENTRIES_PROPERTY );
+		props.add( CACHE_SIZE_PROPERTY );
+		properties = Collections.unmodifiableList( props );
+	}
+
+	private volatile KaNiaFiUserStore store;
+
+	@Override
+	protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return properties;
+	}
+
+	@OnEnabled
+	public void onEnabled( final ConfigurationContext context ) throws InitializationException {
+		try {
+			store = new KaNiaFiUserStore(
+				Paths.get( context.getProperty( CACHE_DIRECTORY_PROPERTY ).getValue() ),
+				context.getProperty( CACHE_ENTRIES_PROPERTY ).asInteger(),
+				context.getProperty( CACHE_SIZE_PROPERTY ).asDataSize( DataUnit.B ).longValue()
+			);
+		}
+		catch( IOException e ) {
+			throw new InitializationException( "Failed to open user cache " + context.getProperty( CACHE_DIRECTORY_PROPERTY ).getValue(), e );
+		}
+		getLogger().info( "Opened user cache with {} users", new Object[]{ store.count() } );
+	}
+
+	@OnDisabled
+	public void shutdown() {
+		KaNiaFiUserStore store = this.store;
+		this.store = null;
+		if( store != null ) {
+			try {
+				store.close();
+			}
+			catch( IOException e ) {
+				getLogger().error( "Failed to close user cache {}", new Object[]{ e } );
+			}
+		}
+	}
+
+	@Override
+	public byte[] get( long pk ) {
+		return this.store().get( pk );
+	}
+
+	@Override
+	public boolean put( long pk, byte[] record ) {
+		return this.store().put( pk, record );
+	}
+
+	@Override
+	public long size() {
+		return this.store().count();
+	}
+
+	private KaNiaFiUserStore store() {
+		KaNiaFiUserStore store = this.store;
+		if( store == null ) {
+			throw new IllegalStateException( "User cache is not enabled" );
+		}
+		return store;
+	}
+
+}
@@ -1,70 +0,0 @@
-/*
-* Licensed to the Apache Software Foundation (ASF) under one or more
-* contributor license agreements.  See the NOTICE file distributed with
-* this work for additional information regarding copyright ownership.
-* The ASF licenses this file to You under the Apache License, Version 2.0
-* (the "License"); you may not use this file except in compliance with
-* the License.  You may obtain a copy of the License at
-*
-*     http://www.apache.org/licenses/LICENSE-2.0
-*
-* Unless required by applicable law or agreed to in writing, software
-* distributed under the License is distributed on an "AS IS" BASIS,
-* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-* See the License for the specific language governing permissions and
-* limitations under the License.
-*/
-package org.hxari.nifi.kaniafi.service;
-
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
-import org.apache.nifi.annotation.documentation.CapabilityDescription;
-import org.apache.nifi.annotation.documentation.Tags;
-import org.apache.nifi.annotation.lifecycle.OnDisabled;
-import org.apache.nifi.annotation.lifecycle.OnEnabled;
-import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.controller.AbstractControllerService;
-import org.apache.nifi.controller.ConfigurationContext;
-import org.apache.nifi.processor.util.StandardValidators;
-import org.apache.nifi.reporting.InitializationException;
-
-@Tags({ "example" })
-@CapabilityDescription( "Example ControllerService implementation of MyService." )
-public class StandardMyService extends AbstractControllerService implements MyService {
-
-	public static final PropertyDescriptor MY_PROPERTY = new PropertyDescriptor.Builder()
-		.name( "MY_PROPERTY" )
-		.displayName( "My Property" )
-		.description( "Example Property" )
-		.required( true )
-		.addValidator( StandardValidators.NON_EMPTY_VALIDATOR )
-		.build();
-
-	private static final List<PropertyDescriptor> properties;
-	static {
-		final List<PropertyDescriptor> props = new ArrayList<>();
-		props.add( MY_PROPERTY );
-		properties = Collections.unmodifiableList( props );
-	}
-
-	@Override
-	protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
-		return properties;
-	}
-
-	@OnEnabled
-	public void onEnabled( final ConfigurationContext context ) throws InitializationException {
-	}
-
-	@OnDisabled
-	public void shutdown() {
-	}
-
-
-	@Override
-	public void execute() {
-	}
-
-}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestKaNiaFiUserStore {
+
+    private static byte[] user(long pk, int padding) {
+        return ("{\"pk\":" + pk + ",\"username\":\"" + "k".repeat(padding) + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testPersistence(@TempDir Path directory) throws Exception {
+        try (KaNiaFiUserStore store = new KaNiaFiUserStore(directory, 1000, 1 << 20)) {
+            for (long pk = 1; pk <= 100; pk++) {
+                store.put(pk, user(pk, 1));
+            }
+            store.put(7, user(7, 10));
+            IOException e = assertThrows(IOException.class, () -> new KaNiaFiUserStore(directory, 1000, 1 << 20));
+            assertTrue(e.getMessage().endsWith("is already in use"));
+        }
+        try (KaNiaFiUserStore store = new KaNiaFiUserStore(directory, 1000, 1 << 20)) {
+            assertEquals(100, store.count());
+            assertArrayEquals(user(7, 10), store.get(7));
+            assertArrayEquals(user(100, 1), store.get(100));
+            assertNull(store.get(101));
+        }
+        try (KaNiaFiUserStore store = new KaNiaFiUserStore(directory, 2000, 1 << 20)) {
+            assertEquals(0, store.count());
+            assertNull(store.get(7));
+        }
+    }
+
+    @Test
+    public void testEviction(@TempDir Path directory) throws Exception {
+        try (KaNiaFiUserStore store = new KaNiaFiUserStore(directory, 1 << 20, 1 << 16)) {
+            store.put(1, user(1, 1000));
+            store.put(2, user(2, 1000));
+            assertNotNull(store.get(1));
+            for (long pk = 3; pk <= 80; pk++) {
+                store.put(pk, user(pk, 1000));
+            }
+            assertNotNull(store.get(1));
+            assertNull(store.get(2));
+            assertArrayEquals(user(80, 1000), store.get(80));
+            assertNull(store.get(3));
+            assertFalse(store.put(201, user(201, 1 << 16)));
+        }
+        try (KaNiaFiUserStore store = new KaNiaFiUserStore(directory.resolve("entries"), 100, 1 << 20)) {
+            for (long pk = 1; pk <= 1000; pk++) {
+                store.put(pk, user(pk, 1));
+            }
+            assertEquals(store.limit(), store.count());
+            assertNull(store.get(1));
+            assertNotNull(store.get(1000));
+        }
+    }
+
+    @Test
+    public void testEvictionReferenced(@TempDir Path directory) throws Exception {
+        try (KaNiaFiUserStore store = new KaNiaFiUserStore(directory, 12, 1 << 16)) {
+            for (long pk = 1; pk <= 2000; pk++) {
+                assertTrue(store.put(pk, user(pk, padding(pk))));
+                for (long cached = Math.max(1, pk - 40); cached <= pk; cached++) {
+                    byte[] record = store.get(cached);
+                    if (record != null) {
+                        assertArrayEquals(user(cached, padding(cached)), record);
+                    }
+                }
+                assertTrue(store.count() <= store.limit());
+                assertArrayEquals(user(pk, padding(pk)), store.get(pk));
+            }
+        }
+    }
+
+    private static int padding(long pk) {
+        return 2000 + (int) (pk * 7919 % 4000);
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.hxari.nifi.kaniafi.scheme.KaNiaFiCompiledScheme;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestStandardKaNiaFiSchemaRegistry {
+
+    private static final String SCHEME = "[{\"type\":\"user\",\"scheme\":{\"type\":\"object\",\"required\":[\"pk\",\"username\"]}},{\"type\":\"invalid\",\"scheme\":{\"type\":1}}]";
+
+    @Test
+    public void testService(@TempDir Path directory) throws Exception {
+        Path source = directory.resolve("scheme.json");
+        Files.write(source, SCHEME.getBytes(StandardCharsets.UTF_8));
+        final TestRunner runner = TestRunners.newTestRunner(TestProcessor.class);
+        final StandardKaNiaFiSchemaRegistry service = new StandardKaNiaFiSchemaRegistry();
+        runner.addControllerService("test-good", service);
+
+        runner.setProperty(service, StandardKaNiaFiSchemaRegistry.SCHEME_SOURCE_PROPERTY, source.toString());
+        runner.enableControllerService(service);
+
+        runner.assertValid(service);
+        KaNiaFiSchemaSnapshot snapshot = service.getSnapshot();
+        assertEquals(1, snapshot.getVersion());
+        assertEquals(source.toString(), service.getSource());
+        assertEquals(SCHEME, new String(snapshot.getScheme(), StandardCharsets.UTF_8));
+
+        KaNiaFiCompiledScheme compiled = KaNiaFiCompiledScheme.compile(snapshot.getScheme(), 1);
+        assertEquals(1, compiled.entries().size());
+        assertEquals(service.getDigest(), compiled.digest());
+        assertEquals(snapshot.getDigest(), compiled.digest());
+        String digest = compiled.entries().get(0).digest();
+        assertTrue(service.validate("user", digest, "{\"pk\":1,\"username\":\"kana\"}"));
+        assertFalse(service.validate("user", digest, "{\"pk\":1}"));
+        assertThrows(IOException.class, () -> service.validate("user", "0", "{}"));
+    }
+
+    @Test
+    public void testResolve(@TempDir Path directory) throws Exception {
+        Path source = directory.resolve("scheme.json");
+        Files.write(source, SCHEME.getBytes(StandardCharsets.UTF_8));
+        final TestRunner runner = TestRunners.newTestRunner(TestProcessor.class);
+        final StandardKaNiaFiSchemaRegistry service = new StandardKaNiaFiSchemaRegistry();
+        runner.addControllerService("test-good", service);
+
+        runner.setProperty(service, StandardKaNiaFiSchemaRegistry.SCHEME_SOURCE_PROPERTY, source.toString());
+        runner.setProperty(service, StandardKaNiaFiSchemaRegistry.SCHEME_RELOAD_INTERVAL_PROPERTY, "0 sec");
+        runner.enableControllerService(service);
+
+        final ObjectMapper mapper = new ObjectMapper();
+        String digest = KaNiaFiCompiledScheme.compile(service.getSnapshot().getScheme(), 1).entries().get(0).digest();
+        assertEquals(mapper.readTree("{\"type\":\"object\",\"required\":[\"pk\",\"username\"]}"), mapper.readTree(service.resolve("user", digest)));
+        assertNull(service.resolve("user", "0"));
+        for (int i = 1; i <= 5; i++) {
+            Files.write(source, SCHEME.replace("\"username\"", "\"username\",\"" + "f".repeat(i) + "\"").getBytes(StandardCharsets.UTF_8));
+            assertEquals(1 + i, service.getSnapshot().getVersion());
+            if (i <= 4) {
+                assertNotNull(service.resolve("user", digest));
+                assertTrue(service.validate("user", digest, "{\"pk\":1,\"username\":\"kana\"}"));
+            }
+        }
+        assertNull(service.resolve("user", digest));
+        assertThrows(IOException.class, () -> service.validate("user", digest, "{}"));
+    }
+
+}
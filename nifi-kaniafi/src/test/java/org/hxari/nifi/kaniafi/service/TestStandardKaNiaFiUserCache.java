@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hxari.nifi.kaniafi.service;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestStandardKaNiaFiUserCache {
+
+    @Test
+    public void testService(@TempDir Path directory) throws Exception {
+        final TestRunner runner = TestRunners.newTestRunner(TestProcessor.class);
+        final StandardKaNiaFiUserCache service = new StandardKaNiaFiUserCache();
+        runner.addControllerService("test-cache", service);
+        runner.setProperty(service, StandardKaNiaFiUserCache.CACHE_DIRECTORY_PROPERTY, directory.toString());
+        runner.setProperty(service, StandardKaNiaFiUserCache.CACHE_ENTRIES_PROPERTY, "100");
+        runner.setProperty(service, StandardKaNiaFiUserCache.CACHE_SIZE_PROPERTY, "1 MB");
+        runner.assertValid(service);
+        runner.enableControllerService(service);
+
+        byte[] user = "{\"pk\":1,\"username\":\"kana\"}".getBytes(StandardCharsets.UTF_8);
+        assertTrue(service.put(1, user));
+        assertArrayEquals(user, service.get(1));
+        assertNull(service.get(2));
+
+        runner.disableControllerService(service);
+        assertThrows(IllegalStateException.class, () -> service.get(1));
+
+        runner.enableControllerService(service);
+        assertEquals(1, service.size());
+        assertArrayEquals(user, service.get(1));
+        runner.disableControllerService(service);
+    }
+
+}